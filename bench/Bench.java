@@ -0,0 +1,442 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import javax.microedition.lcdui.Display;
+import javax.microedition.lcdui.Graphics;
+
+/**
+* Headless benchmarks for the terminal core, run on a desktop
+* JVM against the stub lcdui classes in bench/stubs.
+*
+* Each benchmark is warmed up, then timed over several rounds;
+* one line per benchmark is printed as tab separated fields:
+* name, median score, unit, lowest and highest round.  Lines
+* starting with '#' are comments.  Higher scores are better,
+* except for the graphics calls per frame.
+*
+* Usage: java Bench [rounds [url]]
+*
+* The pipeline benchmarks run over a loopback transport, and
+* also over the transport for the specified URL if given, such
+* as socket://127.0.0.1:2323 with bench/echo-server.py running.
+*/
+public class Bench
+{
+    private static final int CHUNK = 512; // as read by BlueTerm
+    private static final int SIZE = 2 << 20; // bytes per receive round
+    private static final long ROUND_NANOS = 250000000L;
+    private static final int WARMUP = 5;
+
+    private static int rounds = 7;
+    private static TelnetCanvas canvas;
+
+    public static void main( String[] args ) throws Exception
+    {
+        if ( args.length > 0 ) rounds = Integer.parseInt( args[0] );
+
+        canvas = new TelnetCanvas( Display.getDisplay( null ) );
+        canvas.setup();
+        System.out.println( "# " + canvas.getColumns() + "x" + canvas.getRows()
+            + " cells, " + rounds + " rounds, java " + System.getProperty( "java.version" ) );
+
+        receive( "receive.plain", plainText() );
+        receive( "receive.sgr", colorListing() );
+        receive( "receive.top", fullScreenRedraws() );
+        receive( "receive.scroll", shortLines() );
+        receive( "receive.utf8", treeListing() );
+
+        // again, with each line scrolled off going to the archive
+        TelnetCanvas ring = canvas;
+        canvas = new TelnetCanvas( Display.getDisplay( null ) );
+        canvas.setScrollback( ring.getRows() + 1 );
+        canvas.setHistory( ScrollbackArchive.DEFAULT_BUDGET );
+        canvas.setup();
+        receive( "receive.history", plainText() );
+        canvas = ring;
+
+        // sessions recorded with tools/ttyrec.py
+        String[] names = new java.io.File( "recordings" ).list();
+        if ( names == null ) names = new String[0];
+        java.util.Arrays.sort( names );
+        for ( int i = 0; i < names.length; i++ )
+        {
+            if ( !names[i].endsWith( ".ttyrec" ) ) continue;
+            byte[][] frames = frames( "recordings/" + names[i] );
+            String name = "replay." + names[i].substring( 0, names[i].length() - 7 );
+            replay( name, frames );
+            paint( name + ".paint", frames );
+        }
+
+        inflate( "inflate.plain", plainText() );
+        inflate( "inflate.sgr", colorListing() );
+
+        pipeline( "pipeline.loopback", "loopback:" );
+        if ( args.length > 1 ) pipeline( "pipeline." + args[1].substring( 0, args[1].indexOf( ':' ) ), args[1] );
+
+        // frames: an update followed by the paint showing it
+        byte[][] updates = new byte[10][];
+        for ( int n = 0; n < updates.length; n++ ) updates[n] = topFrame( n );
+        paint( "paint.full", updates );
+        for ( int n = 0; n < updates.length; n++ ) updates[n] = paletteFrame( n );
+        paint( "paint.palette", updates );
+        paint( "paint.scroll", lines( plainText() ) );
+        updates = new byte[][] { "\033[5;5Hx".getBytes(), "\033[5;5Hy".getBytes() };
+        paint( "paint.cell", updates );
+
+        System.exit( 0 ); // the canvas' repaint timer is not a daemon
+    }
+
+    /**
+    * Times feeding the specified bytes to the canvas
+    * in read-sized chunks.
+    */
+    private static void receive( String name, byte[] data )
+    {
+        double[] scores = new double[ rounds ];
+        long start;
+        for ( int r = -WARMUP; r < rounds; r++ )
+        {
+            start = System.nanoTime();
+            for ( int i = 0; i < data.length; i += CHUNK )
+            {
+                canvas.receive( data, i, Math.min( CHUNK, data.length - i ) );
+            }
+            if ( r >= 0 ) scores[r] = data.length / ( ( System.nanoTime() - start ) / 1e9 ) / 1e6;
+        }
+        report( name, scores, "MB/s" );
+    }
+
+    /**
+    * Times feeding the specified frames of a recording to the 
+    * canvas, as fast as it takes them.
+    */
+    private static void replay( String name, byte[][] frames )
+    {
+        long size = 0;
+        for ( int i = 0; i < frames.length; i++ ) size += frames[i].length;
+        int times = (int) Math.max( 1, SIZE / size ); // about as much as the other receive rounds
+        double[] scores = new double[ rounds ];
+        long start;
+        for ( int r = -WARMUP; r < rounds; r++ )
+        {
+            start = System.nanoTime();
+            for ( int n = 0; n < times; n++ )
+            {
+                for ( int i = 0; i < frames.length; i++ ) canvas.receive( frames[i] );
+            }
+            if ( r >= 0 ) scores[r] = size * times / ( ( System.nanoTime() - start ) / 1e9 ) / 1e6;
+        }
+        report( name, scores, "MB/s" );
+    }
+
+    /**
+    * Reads the frames of the specified ttyrec recording.
+    */
+    private static byte[][] frames( String path ) throws IOException
+    {
+        TtyrecInputStream in = new TtyrecInputStream( new java.io.FileInputStream( path ), false );
+        java.util.Vector frames = new java.util.Vector();
+        byte[] buffer = new byte[ 65536 ];
+        int n;
+        while ( ( n = in.read( buffer, 0, buffer.length ) ) != -1 )
+        {
+            byte[] frame = new byte[n];
+            System.arraycopy( buffer, 0, frame, 0, n );
+            frames.addElement( frame );
+        }
+        in.close();
+        byte[][] result = new byte[ frames.size() ][];
+        frames.copyInto( result );
+        return result;
+    }
+
+    /**
+    * Times inflating the specified output, deflated the way
+    * host/deflate-relay.py does it: flushed every read-sized
+    * chunk.  The score is in uncompressed bytes.
+    */
+    private static void inflate( String name, byte[] data ) throws IOException
+    {
+        Deflater deflater = new Deflater( 9, true );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[ CHUNK * 2 ];
+        int n;
+        for ( int i = 0; i < data.length; i += CHUNK )
+        {
+            deflater.setInput( data, i, Math.min( CHUNK, data.length - i ) );
+            while ( ( n = deflater.deflate( buffer, 0, buffer.length, Deflater.SYNC_FLUSH ) ) > 0 )
+            {
+                out.write( buffer, 0, n );
+            }
+        }
+        byte[] compressed = out.toByteArray();
+
+        double[] scores = new double[ rounds ];
+        InflateInputStream in;
+        long start;
+        for ( int r = -WARMUP; r < rounds; r++ )
+        {
+            start = System.nanoTime();
+            in = new InflateInputStream( new ByteArrayInputStream( compressed ) );
+            for ( n = 0; n < data.length; n += in.read( buffer, 0, CHUNK ) );
+            if ( r >= 0 ) scores[r] = data.length / ( ( System.nanoTime() - start ) / 1e9 ) / 1e6;
+        }
+        report( name, scores, "MB/s" );
+        System.out.println( "# " + name + ": " + data.length + " bytes deflated to " + compressed.length );
+    }
+
+    /**
+    * Times the whole receive path over the specified transport,
+    * which must echo what it is sent: output is queued on an
+    * OutputWriter from another thread, read back as BlueTerm
+    * reads it and parsed from an InputQueue.  Then times round
+    * trips of a single byte, fed to the canvas directly.
+    */
+    private static void pipeline( String name, String url ) throws Exception
+    {
+        final Transport transport = Transport.open( url );
+        final OutputWriter writer = new OutputWriter( transport.getOutputStream(), transport.getWriteBuffer() );
+        writer.setMaxLatency( 0 );
+        writer.start();
+        final byte[] data = plainText();
+        byte[] buffer = new byte[ transport.getReadChunk() ];
+
+        double[] scores = new double[ rounds ];
+        long start;
+        int n;
+        InputQueue queue;
+        for ( int r = -WARMUP; r < rounds; r++ )
+        {
+            start = System.nanoTime();
+            queue = new InputQueue( canvas, InputQueue.DEFAULT_BUFFER );
+            queue.start();
+            new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        writer.write( data );
+                    }
+                    catch ( IOException exc )
+                    {
+                        exc.printStackTrace();
+                    }
+                }
+            }.start();
+            for ( int got = 0; got < data.length; got += n )
+            {
+                if ( ( n = transport.read( buffer ) ) == -1 ) throw new IOException( "Closed" );
+                queue.put( buffer, 0, n );
+            }
+            queue.close();
+            if ( r >= 0 ) scores[r] = data.length / ( ( System.nanoTime() - start ) / 1e9 ) / 1e6;
+        }
+        report( name, scores, "MB/s" );
+
+        int trips = 100;
+        for ( int r = -WARMUP; r < rounds; r++ )
+        {
+            start = System.nanoTime();
+            for ( int i = 0; i < trips; i++ )
+            {
+                writer.write( (byte) 'x' );
+                canvas.receive( buffer, 0, transport.read( buffer ) );
+            }
+            if ( r >= 0 ) scores[r] = ( System.nanoTime() - start ) / 1e3 / trips;
+        }
+        report( name + ".echo", scores, "us" );
+
+        writer.close();
+        transport.close();
+    }
+
+    /**
+    * Splits the specified output into lines.
+    */
+    private static byte[][] lines( byte[] data )
+    {
+        java.util.Vector updates = new java.util.Vector();
+        int start = 0;
+        for ( int i = 0; i < data.length; i++ )
+        {
+            if ( data[i] == '\n' )
+            {
+                byte[] update = new byte[ i + 1 - start ];
+                System.arraycopy( data, start, update, 0, update.length );
+                updates.addElement( update );
+                start = i + 1;
+            }
+        }
+        byte[][] result = new byte[ updates.size() ][];
+        updates.copyInto( result );
+        return result;
+    }
+
+    /**
+    * Times receiving each update in turn, each followed by a
+    * paint of the whole screen, also reporting the graphics
+    * calls made per frame.
+    */
+    private static void paint( String name, byte[][] updates )
+    {
+        int w = canvas.getWidth(), h = canvas.getHeight();
+        Graphics g = Graphics.forScreen( w, h );
+        double[] scores = new double[ rounds ];
+        long start, frames = 0, calls = 0;
+        for ( int r = -WARMUP; r < rounds; r++ )
+        {
+            start = System.nanoTime();
+            frames = 0;
+            Graphics.drawCalls = 0;
+            while ( System.nanoTime() - start < ROUND_NANOS )
+            {
+                canvas.receive( updates[ (int) ( frames % updates.length ) ] );
+                g.setClip( 0, 0, w, h );
+                canvas.paint( g );
+                frames++;
+            }
+            calls = Graphics.drawCalls / frames;
+            if ( r >= 0 ) scores[r] = frames / ( ( System.nanoTime() - start ) / 1e9 );
+        }
+        report( name, scores, "frames/s" );
+        System.out.println( name + ".calls\t" + calls + "\tcalls/frame\t" + calls + "\t" + calls );
+    }
+
+    private static void report( String name, double[] scores, String unit )
+    {
+        double[] sorted = new double[ scores.length ];
+        System.arraycopy( scores, 0, sorted, 0, scores.length );
+        java.util.Arrays.sort( sorted );
+        System.out.println( name + "\t" + format( sorted[ sorted.length / 2 ] ) + "\t" + unit
+            + "\t" + format( sorted[0] ) + "\t" + format( sorted[ sorted.length - 1 ] ) );
+    }
+
+    private static String format( double d )
+    {
+        return String.valueOf( Math.round( d * 10 ) / 10.0 );
+    }
+
+    /**
+    * Kernel log style lines.
+    */
+    private static byte[] plainText()
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for ( int n = 0; out.size() < SIZE; n++ )
+        {
+            write( out, "[" + n + ".000" + ( n * 37 % 1000 ) + "] usb 1-1." + ( n % 4 )
+                + ": new high-speed USB device number " + ( n % 128 ) + " using ehci-pci\r\n" );
+        }
+        return out.toByteArray();
+    }
+
+    /**
+    * Colored directory listing, as from ls --color.
+    */
+    private static byte[] colorListing()
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for ( int n = 0; out.size() < SIZE; n++ )
+        {
+            write( out, "\033[01;3" + ( n % 8 ) + ";4" + ( n / 8 % 8 ) + "mfile" + n + "\033[0m  " );
+            if ( n % 6 == 5 ) write( out, "\r\n" );
+        }
+        return out.toByteArray();
+    }
+
+    /**
+    * Cursor addressed full screen updates, as from top.
+    */
+    private static byte[] fullScreenRedraws()
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] frame;
+        for ( int n = 0; out.size() < SIZE; n++ )
+        {
+            frame = topFrame( n );
+            out.write( frame, 0, frame.length );
+        }
+        return out.toByteArray();
+    }
+
+    /**
+    * One screen of top.
+    */
+    private static byte[] topFrame( int n )
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write( out, "\033[H\033[7m  PID USER      PR  NI  %CPU  TIME+ COMMAND\033[K\033[m" );
+        for ( int y = 2; y <= canvas.getRows(); y++ )
+        {
+            write( out, "\033[" + y + ";1H" + ( 1000 + y ) + " root      20   0 "
+                + ( ( n + y ) % 100 ) + ".0  0:0" + ( n % 10 ) + ".00 "
+                + ( y % 3 == 0 ? "\033[1;32mbash\033[m" : "sshd" ) + "\033[K" );
+        }
+        return out.toByteArray();
+    }
+
+    /**
+    * One screen with each cell in the next of the sixteen
+    * colors, plain and bold, as from lolcat.
+    */
+    private static byte[] paletteFrame( int n )
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write( out, "\033[H" );
+        for ( int y = 0; y < canvas.getRows(); y++ )
+        {
+            for ( int x = 0; x < canvas.getColumns(); x++ )
+            {
+                int color = ( n + x + y ) % 16;
+                write( out, "\033[" + ( y % 2 ) + ";" + ( color < 8 ? 30 + color : 82 + color ) + "m"
+                    + (char) ( 'a' + ( x + y ) % 26 ) );
+            }
+        }
+        write( out, "\033[m" );
+        return out.toByteArray();
+    }
+
+    /**
+    * Box drawing in UTF-8, as from tree.
+    */
+    private static byte[] treeListing()
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for ( int n = 0; out.size() < SIZE; n++ )
+        {
+            write( out, ( n % 5 == 4 ? "\u2514" : "\u251c" ) + "\u2500\u2500 dir" + n + "\r\n" );
+            write( out, "\u2502   \u2514\u2500\u2500 caf\u00e9-" + n + ".txt\r\n" );
+        }
+        return out.toByteArray();
+    }
+
+    /**
+    * Very short lines, so that most of the work is scrolling.
+    */
+    private static byte[] shortLines()
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for ( int n = 0; out.size() < SIZE; n++ )
+        {
+            write( out, ( n % 10 ) + "\r\n" );
+        }
+        return out.toByteArray();
+    }
+
+    private static void write( ByteArrayOutputStream out, String s )
+    {
+        byte[] b;
+        try
+        {
+            b = s.getBytes( "UTF-8" );
+        }
+        catch ( java.io.UnsupportedEncodingException exc )
+        {
+            throw new RuntimeException( exc.toString() );
+        }
+        out.write( b, 0, b.length );
+    }
+}
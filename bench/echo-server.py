@@ -0,0 +1,67 @@
+#!/usr/bin/env python3
+"""Echo server for measuring the receive pipeline over a socket:
+each connection gets a pty in raw mode running cat, so whatever
+is sent comes back through a real terminal device.
+
+    bench/echo-server.py [port]      # 2323 by default
+    BENCH_URL=socket://127.0.0.1:2323 bench/run.sh
+"""
+
+import os
+import pty
+import select
+import socket
+import sys
+
+
+def serve(conn):
+    pid, master = pty.fork()
+    if pid == 0:
+        os.execvp("sh", ["sh", "-c", "stty raw -echo; exec cat"])
+    os.set_blocking(master, False)
+    pending = b""  # received, not yet taken by the pty
+    try:
+        while True:
+            readers = [master] + ([conn] if len(pending) < 65536 else [])
+            writers = [master] if pending else []
+            readable, writable, _ = select.select(readers, writers, [])
+            if master in writable:
+                pending = pending[os.write(master, pending):]
+            if conn in readable:
+                data = conn.recv(65536)
+                if not data:
+                    return
+                pending += data
+            if master in readable:
+                try:
+                    data = os.read(master, 65536)
+                except BlockingIOError:
+                    continue
+                except OSError:
+                    return
+                conn.sendall(data)
+    finally:
+        conn.close()
+        os.close(master)
+        os.kill(pid, 9)
+        os.waitpid(pid, 0)
+
+
+def main():
+    port = int(sys.argv[1]) if len(sys.argv) > 1 else 2323
+    server = socket.socket()
+    server.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
+    server.bind(("127.0.0.1", port))
+    server.listen(1)
+    while True:
+        conn, _ = server.accept()
+        conn.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+        if os.fork() == 0:
+            server.close()
+            serve(conn)
+            os._exit(0)
+        conn.close()
+
+
+if __name__ == "__main__":
+    main()
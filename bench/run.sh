@@ -0,0 +1,35 @@
+#!/bin/sh
+# Runs the headless benchmarks on a desktop JVM.
+#
+#   bench/run.sh [baseline.tsv]
+#
+# Results go to stdout and bench/results.tsv.  Given a baseline
+# from an earlier run, any benchmark more than 10% worse is
+# reported and the script exits with status 1.  BENCH_ROUNDS
+# sets the number of rounds, BENCH_URL a transport to measure
+# the pipeline over besides the loopback (see echo-server.py).
+
+cd "$(dirname "$0")" || exit 1
+rm -rf classes && mkdir -p classes &&
+javac -nowarn -d classes $(find stubs -name '*.java') \
+    ../src/TelnetCanvas.java ../src/CustomFont.java ../src/AnsiParser.java ../src/OutputWriter.java \
+    ../src/InflateInputStream.java ../src/Transport.java ../src/StreamTransport.java \
+    ../src/LoopbackTransport.java ../src/ReplayTransport.java ../src/InputQueue.java \
+    ../src/ScrollbackArchive.java ../src/SessionRecorder.java ../src/TtyrecInputStream.java \
+    ../src/Keymap.java \
+    Bench.java &&
+cp ../src/font*.png ../src/font*.bin classes/ &&
+java -cp classes Bench ${BENCH_ROUNDS:-7} $BENCH_URL | tee results.tsv || exit 1
+
+[ -n "$1" ] || exit 0
+awk -F '\t' -v tolerance=0.10 '
+    /^#/ { next }
+    NR == FNR { base[$1] = $2; next }
+    !($1 in base) { next }
+    # fewer calls per frame and microseconds are better, more of anything else
+    $3 == "calls/frame" || $3 == "us" ? $2 > base[$1] * (1 + tolerance) : $2 < base[$1] * (1 - tolerance) {
+        printf "REGRESSION %s: %s -> %s %s\n", $1, base[$1], $2, $3
+        failed = 1
+    }
+    END { exit failed }
+' "$1" results.tsv
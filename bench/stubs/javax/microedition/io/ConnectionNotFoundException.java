@@ -0,0 +1,8 @@
+package javax.microedition.io;
+
+import java.io.IOException;
+
+public class ConnectionNotFoundException extends IOException
+{
+    public ConnectionNotFoundException( String s ) { super( s ); }
+}
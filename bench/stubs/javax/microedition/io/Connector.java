@@ -0,0 +1,42 @@
+package javax.microedition.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+* Opens socket:// URLs with java.net; nothing else.
+*/
+public class Connector
+{
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+    public static final int READ_WRITE = 3;
+
+    public static Connection open( String url, int mode ) throws IOException
+    {
+        return open( url );
+    }
+
+    public static Connection open( String url ) throws IOException
+    {
+        if ( !url.startsWith( "socket://" ) ) throw new ConnectionNotFoundException( url );
+        String address = url.substring( 9 );
+        int colon = address.lastIndexOf( ':' );
+        final Socket socket = new Socket( address.substring( 0, colon ),
+            Integer.parseInt( address.substring( colon + 1 ) ) );
+        return new SocketConnection()
+        {
+            public InputStream openInputStream() throws IOException { return socket.getInputStream(); }
+            public OutputStream openOutputStream() throws IOException { return socket.getOutputStream(); }
+            public void close() throws IOException { socket.close(); }
+            public void setSocketOption( byte option, int value ) throws IOException
+            {
+                if ( option == DELAY ) socket.setTcpNoDelay( value == 0 );
+                else if ( option == RCVBUF ) socket.setReceiveBufferSize( value );
+                else if ( option == SNDBUF ) socket.setSendBufferSize( value );
+            }
+        };
+    }
+}
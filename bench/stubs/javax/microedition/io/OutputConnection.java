@@ -0,0 +1,9 @@
+package javax.microedition.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public interface OutputConnection extends Connection
+{
+    OutputStream openOutputStream() throws IOException;
+}
@@ -0,0 +1,69 @@
+package javax.microedition.lcdui;
+
+/**
+* Headless stand-in for the MIDP Canvas: repaint requests are
+* counted and recorded, and paint() is driven by the harness.
+*/
+public abstract class Canvas extends Displayable
+{
+    public static final int UP = 1, DOWN = 6, LEFT = 2, RIGHT = 5, FIRE = 8;
+    public static final int GAME_A = 9, GAME_B = 10, GAME_C = 11, GAME_D = 12;
+    public static final int KEY_NUM0 = 48, KEY_NUM1 = 49, KEY_NUM2 = 50,
+        KEY_NUM3 = 51, KEY_NUM4 = 52, KEY_NUM5 = 53, KEY_NUM6 = 54,
+        KEY_NUM7 = 55, KEY_NUM8 = 56, KEY_NUM9 = 57, KEY_STAR = 42, KEY_POUND = 35;
+
+    public int repaints;
+    public int clipX, clipY, clipW, clipH;
+
+    protected Canvas() {}
+    public void setFullScreenMode( boolean mode ) {}
+    public boolean isDoubleBuffered() { return true; }
+
+    public final void repaint()
+    {
+        repaint( 0, 0, getWidth(), getHeight() );
+    }
+
+    public final void repaint( int x, int y, int w, int h )
+    {
+        if ( repaints == 0 || clipW == 0 )
+        {
+            clipX = x; clipY = y; clipW = w; clipH = h;
+        }
+        else
+        {
+            int x2 = Math.max( clipX + clipW, x + w );
+            int y2 = Math.max( clipY + clipH, y + h );
+            clipX = Math.min( clipX, x );
+            clipY = Math.min( clipY, y );
+            clipW = x2 - clipX;
+            clipH = y2 - clipY;
+        }
+        repaints++;
+    }
+
+    public final void serviceRepaints() {}
+
+    public int getGameAction( int keyCode )
+    {
+        switch ( keyCode )
+        {
+            case -1: return UP;
+            case -2: return DOWN;
+            case -3: return LEFT;
+            case -4: return RIGHT;
+            case -5: return FIRE;
+        }
+        return 0;
+    }
+
+    public int getKeyCode( int gameAction ) { return 0; }
+    public String getKeyName( int keyCode ) { return String.valueOf( keyCode ); }
+
+    protected void keyPressed( int keyCode ) {}
+    protected void keyRepeated( int keyCode ) {}
+    protected void keyReleased( int keyCode ) {}
+    protected void showNotify() {}
+    protected void hideNotify() {}
+    protected abstract void paint( Graphics g );
+}
@@ -0,0 +1,6 @@
+package javax.microedition.lcdui;
+
+public interface CommandListener
+{
+    void commandAction( Command c, Displayable d );
+}
@@ -0,0 +1,17 @@
+package javax.microedition.lcdui;
+
+import javax.microedition.midlet.MIDlet;
+
+public class Display
+{
+    static int screenWidth = Integer.getInteger( "stub.width", 240 ).intValue();
+    static int screenHeight = Integer.getInteger( "stub.height", 320 ).intValue();
+    private static final Display instance = new Display();
+    private Displayable current;
+
+    public static Display getDisplay( MIDlet m ) { return instance; }
+    public Displayable getCurrent() { return current; }
+    public void setCurrent( Displayable d ) { current = d; }
+    public boolean vibrate( int duration ) { return false; }
+    public void callSerially( Runnable r ) { r.run(); }
+}
@@ -0,0 +1,17 @@
+package javax.microedition.lcdui;
+
+public abstract class Displayable
+{
+    private CommandListener listener;
+    private String title;
+
+    public void addCommand( Command cmd ) {}
+    public void removeCommand( Command cmd ) {}
+    public void setCommandListener( CommandListener l ) { listener = l; }
+    public boolean isShown() { return true; }
+    public String getTitle() { return title; }
+    public void setTitle( String s ) { title = s; }
+    public int getWidth() { return Display.screenWidth; }
+    public int getHeight() { return Display.screenHeight; }
+    protected void sizeChanged( int w, int h ) {}
+}
@@ -0,0 +1,15 @@
+package javax.microedition.lcdui;
+
+public final class Font
+{
+    public static final int STYLE_PLAIN = 0, STYLE_BOLD = 1, STYLE_ITALIC = 2, STYLE_UNDERLINED = 4;
+    public static final int SIZE_SMALL = 8, SIZE_MEDIUM = 0, SIZE_LARGE = 16;
+    public static final int FACE_SYSTEM = 0, FACE_MONOSPACE = 32, FACE_PROPORTIONAL = 64;
+    private static final Font DEFAULT = new Font();
+
+    public static Font getDefaultFont() { return DEFAULT; }
+    public static Font getFont( int face, int style, int size ) { return DEFAULT; }
+    public int getHeight() { return 10; }
+    public int charWidth( char c ) { return 5; }
+    public int stringWidth( String s ) { return 5 * s.length(); }
+}
@@ -0,0 +1,119 @@
+package javax.microedition.lcdui;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+/**
+* MIDP Graphics over java.awt.Graphics2D. Every call is counted
+* in the public static counters so benchmarks can report draw
+* calls per frame alongside wall time.
+*/
+public class Graphics
+{
+    public static final int HCENTER = 1, VCENTER = 2, LEFT = 4, RIGHT = 8, TOP = 16, BOTTOM = 32, BASELINE = 64;
+    public static final int SOLID = 0, DOTTED = 1;
+
+    public static long drawCalls;
+    public static long clipChanges;
+
+    private final BufferedImage target;
+    private final Graphics2D g;
+    private final boolean offscreen;
+    private int color;
+    private int cx, cy, cw, ch;
+    private int tx, ty;
+
+    public Graphics( BufferedImage target, boolean offscreen )
+    {
+        this.target = target;
+        this.offscreen = offscreen;
+        g = target.createGraphics();
+        cw = target.getWidth();
+        ch = target.getHeight();
+        g.setClip( 0, 0, cw, ch );
+    }
+
+    /** Convenience for harnesses: a screen-sized drawing surface. */
+    public static Graphics forScreen( int w, int h )
+    {
+        return new Graphics( new BufferedImage( w, h, BufferedImage.TYPE_INT_ARGB ), false );
+    }
+
+    public BufferedImage getTarget() { return target; }
+
+    public void translate( int x, int y ) { tx += x; ty += y; g.translate( x, y ); cx -= x; cy -= y; }
+    public int getTranslateX() { return tx; }
+    public int getTranslateY() { return ty; }
+
+    public void setColor( int rgb ) { color = rgb & 0xffffff; g.setColor( new java.awt.Color( color ) ); }
+    public void setColor( int r, int gr, int b ) { setColor( ( r << 16 ) | ( gr << 8 ) | b ); }
+    public void setGrayScale( int v ) { setColor( v, v, v ); }
+    public int getColor() { return color; }
+    public int getRedComponent() { return ( color >> 16 ) & 0xff; }
+    public int getGreenComponent() { return ( color >> 8 ) & 0xff; }
+    public int getBlueComponent() { return color & 0xff; }
+    public int getGrayScale() { return getBlueComponent(); }
+    public int getDisplayColor( int c ) { return c; }
+    public void setStrokeStyle( int s ) {}
+    public int getStrokeStyle() { return SOLID; }
+    public void setFont( Font f ) {}
+    public Font getFont() { return Font.getDefaultFont(); }
+
+    public int getClipX() { return cx; }
+    public int getClipY() { return cy; }
+    public int getClipWidth() { return cw; }
+    public int getClipHeight() { return ch; }
+
+    public void setClip( int x, int y, int w, int h )
+    {
+        clipChanges++;
+        cx = x; cy = y; cw = w; ch = h;
+        g.setClip( x, y, w, h );
+    }
+
+    public void clipRect( int x, int y, int w, int h )
+    {
+        int x2 = Math.min( cx + cw, x + w ), y2 = Math.min( cy + ch, y + h );
+        cx = Math.max( cx, x ); cy = Math.max( cy, y );
+        cw = Math.max( 0, x2 - cx ); ch = Math.max( 0, y2 - cy );
+        clipChanges++;
+        g.setClip( cx, cy, cw, ch );
+    }
+
+    public void drawLine( int x1, int y1, int x2, int y2 ) { drawCalls++; g.drawLine( x1, y1, x2, y2 ); }
+    public void fillRect( int x, int y, int w, int h ) { drawCalls++; g.fillRect( x, y, w, h ); }
+    public void drawRect( int x, int y, int w, int h ) { drawCalls++; g.drawRect( x, y, w, h ); }
+    public void drawString( String s, int x, int y, int anchor ) { drawCalls++; }
+    public void drawChar( char c, int x, int y, int anchor ) { drawCalls++; }
+
+    public void drawImage( Image img, int x, int y, int anchor )
+    {
+        drawCalls++;
+        if ( ( anchor & RIGHT ) != 0 ) x -= img.getWidth();
+        else if ( ( anchor & HCENTER ) != 0 ) x -= img.getWidth() / 2;
+        if ( ( anchor & BOTTOM ) != 0 ) y -= img.getHeight();
+        else if ( ( anchor & VCENTER ) != 0 ) y -= img.getHeight() / 2;
+        g.drawImage( img.img, x, y, null );
+    }
+
+    public void drawRegion( Image src, int xs, int ys, int w, int h, int transform, int xd, int yd, int anchor )
+    {
+        drawCalls++;
+        g.drawImage( src.img, xd, yd, xd + w, yd + h, xs, ys, xs + w, ys + h, null );
+    }
+
+    public void copyArea( int xs, int ys, int w, int h, int xd, int yd, int anchor )
+    {
+        if ( !offscreen ) throw new IllegalStateException( "copyArea on display graphics" );
+        drawCalls++;
+        g.copyArea( xs, ys, w, h, xd - xs, yd - ys );
+    }
+
+    public void drawRGB( int[] rgb, int off, int scan, int x, int y, int w, int h, boolean alpha )
+    {
+        drawCalls++;
+        BufferedImage b = new BufferedImage( w, h, BufferedImage.TYPE_INT_ARGB );
+        b.setRGB( 0, 0, w, h, rgb, off, scan );
+        g.drawImage( b, x, y, null );
+    }
+}
@@ -0,0 +1,101 @@
+package javax.microedition.lcdui;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+* Image backed by an ARGB BufferedImage so blits cost real work.
+*/
+public class Image
+{
+    final BufferedImage img;
+    private final boolean mutable;
+
+    Image( BufferedImage img, boolean mutable )
+    {
+        this.img = img; this.mutable = mutable;
+    }
+
+    public static Image createImage( int w, int h )
+    {
+        BufferedImage b = new BufferedImage( w, h, BufferedImage.TYPE_INT_ARGB );
+        java.awt.Graphics2D g = b.createGraphics();
+        g.setColor( java.awt.Color.WHITE );
+        g.fillRect( 0, 0, w, h );
+        g.dispose();
+        return new Image( b, true );
+    }
+
+    public static Image createImage( String name ) throws IOException
+    {
+        InputStream in = Image.class.getResourceAsStream( name );
+        if ( in == null ) throw new IOException( "resource not found: " + name );
+        return createImage( in );
+    }
+
+    public static Image createImage( InputStream in ) throws IOException
+    {
+        BufferedImage src = javax.imageio.ImageIO.read( in );
+        if ( src == null ) throw new IOException( "cannot decode image" );
+        BufferedImage b = new BufferedImage( src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_ARGB );
+        java.awt.Graphics2D g = b.createGraphics();
+        g.drawImage( src, 0, 0, null );
+        g.dispose();
+        return new Image( b, false );
+    }
+
+    public static Image createImage( byte[] data, int off, int len )
+    {
+        try
+        {
+            return createImage( new java.io.ByteArrayInputStream( data, off, len ) );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalArgumentException( e.toString() );
+        }
+    }
+
+    public static Image createImage( Image src )
+    {
+        return src.mutable ? createImage( src, 0, 0, src.getWidth(), src.getHeight(), 0 ) : src;
+    }
+
+    public static Image createImage( Image src, int x, int y, int w, int h, int transform )
+    {
+        BufferedImage b = new BufferedImage( w, h, BufferedImage.TYPE_INT_ARGB );
+        java.awt.Graphics2D g = b.createGraphics();
+        g.drawImage( src.img, -x, -y, null );
+        g.dispose();
+        return new Image( b, false );
+    }
+
+    public static Image createRGBImage( int[] rgb, int w, int h, boolean alpha )
+    {
+        BufferedImage b = new BufferedImage( w, h, BufferedImage.TYPE_INT_ARGB );
+        if ( !alpha )
+        {
+            int[] tmp = new int[ w * h ];
+            for ( int i = 0; i < tmp.length; i++ ) tmp[i] = rgb[i] | 0xff000000;
+            rgb = tmp;
+        }
+        b.setRGB( 0, 0, w, h, rgb, 0, w );
+        return new Image( b, false );
+    }
+
+    public Graphics getGraphics()
+    {
+        if ( !mutable ) throw new IllegalStateException();
+        return new Graphics( img, true );
+    }
+
+    public int getWidth() { return img.getWidth(); }
+    public int getHeight() { return img.getHeight(); }
+    public boolean isMutable() { return mutable; }
+
+    public void getRGB( int[] rgb, int offset, int scanlength, int x, int y, int w, int h )
+    {
+        img.getRGB( x, y, w, h, rgb, offset, scanlength );
+    }
+}
@@ -0,0 +1,7 @@
+package javax.microedition.lcdui.game;
+
+public class Sprite
+{
+    public static final int TRANS_NONE = 0, TRANS_ROT90 = 5, TRANS_ROT180 = 3, TRANS_ROT270 = 6,
+        TRANS_MIRROR = 2, TRANS_MIRROR_ROT90 = 7, TRANS_MIRROR_ROT180 = 1, TRANS_MIRROR_ROT270 = 4;
+}
@@ -0,0 +1,21 @@
+package javax.microedition.midlet;
+
+import java.util.Hashtable;
+
+public abstract class MIDlet
+{
+    private static final Hashtable properties = new Hashtable();
+
+    /** Harness hook: stands in for the JAD attributes. */
+    public static void setAppProperty( String key, String value ) { properties.put( key, value ); }
+
+    protected MIDlet() {}
+    public final String getAppProperty( String key ) { return (String) properties.get( key ); }
+    public final void notifyDestroyed() {}
+    public final void notifyPaused() {}
+    public final void resumeRequest() {}
+    public final boolean platformRequest( String url ) { return false; }
+    protected abstract void startApp() throws MIDletStateChangeException;
+    protected abstract void pauseApp();
+    protected abstract void destroyApp( boolean unconditional ) throws MIDletStateChangeException;
+}
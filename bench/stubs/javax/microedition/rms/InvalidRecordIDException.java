@@ -0,0 +1,7 @@
+package javax.microedition.rms;
+
+public class InvalidRecordIDException extends RecordStoreException
+{
+    public InvalidRecordIDException() { }
+    public InvalidRecordIDException( String s ) { super( s ); }
+}
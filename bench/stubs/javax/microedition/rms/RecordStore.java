@@ -0,0 +1,71 @@
+package javax.microedition.rms;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+* Record stores held in memory, each taking at most the number
+* of bytes in the rms.size system property, if set.
+*/
+public class RecordStore
+{
+    private static final Map<String, RecordStore> stores = new HashMap<String, RecordStore>();
+    private static final int LIMIT = Integer.getInteger( "rms.size", Integer.MAX_VALUE );
+
+    private final Map<Integer, byte[]> records = new HashMap<Integer, byte[]>();
+    private int nextId = 1;
+    private int size;
+
+    public static synchronized RecordStore openRecordStore( String name, boolean create ) throws RecordStoreException
+    {
+        RecordStore store = stores.get( name );
+        if ( store == null )
+        {
+            if ( !create ) throw new RecordStoreNotFoundException( name );
+            store = new RecordStore();
+            stores.put( name, store );
+        }
+        return store;
+    }
+
+    public static synchronized void deleteRecordStore( String name ) throws RecordStoreException
+    {
+        if ( stores.remove( name ) == null ) throw new RecordStoreNotFoundException( name );
+    }
+
+    public synchronized int addRecord( byte[] data, int offset, int length ) throws RecordStoreException
+    {
+        if ( size + length > LIMIT ) throw new RecordStoreFullException();
+        byte[] copy = new byte[ length ];
+        System.arraycopy( data, offset, copy, 0, length );
+        records.put( nextId, copy );
+        size += length;
+        return nextId++;
+    }
+
+    public synchronized byte[] getRecord( int id ) throws RecordStoreException
+    {
+        byte[] data = records.get( id );
+        if ( data == null ) throw new InvalidRecordIDException( String.valueOf( id ) );
+        return data.clone();
+    }
+
+    public synchronized void deleteRecord( int id ) throws RecordStoreException
+    {
+        byte[] data = records.remove( id );
+        if ( data == null ) throw new InvalidRecordIDException( String.valueOf( id ) );
+        size -= data.length;
+    }
+
+    public synchronized int getNextRecordID()
+    {
+        return nextId;
+    }
+
+    public synchronized int getSize()
+    {
+        return size;
+    }
+
+    public void closeRecordStore() throws RecordStoreException { }
+}
@@ -0,0 +1,7 @@
+package javax.microedition.rms;
+
+public class RecordStoreException extends Exception
+{
+    public RecordStoreException() { }
+    public RecordStoreException( String s ) { super( s ); }
+}
@@ -0,0 +1,7 @@
+package javax.microedition.rms;
+
+public class RecordStoreNotFoundException extends RecordStoreException
+{
+    public RecordStoreNotFoundException() { }
+    public RecordStoreNotFoundException( String s ) { super( s ); }
+}
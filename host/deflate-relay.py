@@ -0,0 +1,68 @@
+#!/usr/bin/env python3
+"""Runs a command on a new pty and relays it to a serial device,
+deflating what the command prints, for BlueTerm with
+BT-Compression: deflate in its JAD.
+
+    deflate-relay.py /dev/rfcomm0 agetty -8 38400 - ansi
+    deflate-relay.py - sh          # stdin/stdout as the link, for testing
+
+Output is raw deflate (no zlib header), flushed with Z_SYNC_FLUSH
+after every read from the pty so nothing is held back while the
+command is idle.  Keystrokes from the device pass through as is.
+"""
+
+import os
+import pty
+import select
+import sys
+import tty
+import zlib
+
+READ_SIZE = 4096
+
+
+def main():
+    if len(sys.argv) < 3:
+        sys.exit(__doc__)
+    device, command = sys.argv[1], sys.argv[2:]
+
+    if device == "-":
+        link_in, link_out = sys.stdin.fileno(), sys.stdout.fileno()
+    else:
+        link_in = link_out = os.open(device, os.O_RDWR | os.O_NOCTTY)
+        tty.setraw(link_in)
+
+    pid, master = pty.fork()
+    if pid == 0:
+        os.execvp(command[0], command)
+
+    deflate = zlib.compressobj(9, zlib.DEFLATED, -15)
+    fds = [master, link_in]
+    try:
+        while True:
+            for fd in select.select(fds, [], [])[0]:
+                try:
+                    data = os.read(fd, READ_SIZE)
+                except OSError:  # pty closed when the command exits
+                    data = b""
+                if not data:
+                    return
+                if fd == master:
+                    write(link_out, deflate.compress(data) + deflate.flush(zlib.Z_SYNC_FLUSH))
+                else:
+                    write(master, data)
+    finally:
+        try:
+            write(link_out, deflate.flush(zlib.Z_FINISH))
+        except OSError:
+            pass
+        os.waitpid(pid, 0)
+
+
+def write(fd, data):
+    while data:
+        data = data[os.write(fd, data):]
+
+
+if __name__ == "__main__":
+    main()
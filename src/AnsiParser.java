@@ -0,0 +1,352 @@
+/**
+* Table driven parser for ANSI/VT escape sequences, following
+* the DEC VT500 state diagram: ground, escape, CSI, DCS, OSC
+* and SOS/PM/APC string states, with the "anywhere" transitions
+* for CAN, SUB and ESC.
+*
+* Runs of printable characters, control characters and complete
+* sequences are passed on to the canvas.  Numeric parameters are
+* accumulated into a fixed array as their digits arrive, so no
+* sequence allocates or throws, however malformed.  The contents
+* of DCS, OSC, SOS, PM and APC strings are consumed and dropped.
+*
+* Bytes from 0x80 up in the ground state are decoded as UTF-8,
+* a byte at a time, so that a character may be split across
+* reads.  Malformed or truncated sequences, and characters
+* outside the 16 bit cells of the canvas, become U+FFFD.
+*/
+public class AnsiParser
+{
+    // states
+    private static final int GROUND = 0;
+    private static final int ESCAPE = 1;
+    private static final int ESCAPE_INTERMEDIATE = 2;
+    private static final int CSI_ENTRY = 3;
+    private static final int CSI_PARAM = 4;
+    private static final int CSI_INTERMEDIATE = 5;
+    private static final int CSI_IGNORE = 6;
+    private static final int DCS_ENTRY = 7;
+    private static final int DCS_PARAM = 8;
+    private static final int DCS_INTERMEDIATE = 9;
+    private static final int DCS_PASSTHROUGH = 10;
+    private static final int DCS_IGNORE = 11;
+    private static final int OSC_STRING = 12;
+    private static final int SOS_PM_APC_STRING = 13;
+    private static final int STATES = 14;
+
+    // actions taken on a transition
+    private static final int IGNORE = 0;
+    private static final int PRINT = 1;
+    private static final int EXECUTE = 2;
+    private static final int COLLECT = 3;
+    private static final int PARAM = 4;
+    private static final int ESC_DISPATCH = 5;
+    private static final int CSI_DISPATCH = 6;
+    private static final int UTF8 = 7;
+
+    /**
+    * One entry per state and input byte: the action in the
+    * high nibble, the next state in the low nibble.
+    */
+    private static final byte[] TABLE = new byte[ STATES * 256 ];
+
+    public static final int MAX_PARAMS = 16;
+    private static final int MAX_PARAM_VALUE = 9999;
+
+    private TelnetCanvas canvas;
+    private int state;
+    private int[] params = new int[ MAX_PARAMS ];
+    private int paramCount;
+    private int privateMarker;
+    private int intermediate;
+    private int utf8Char; // the character being decoded
+    private int utf8Remaining; // continuation bytes still to come
+    private int utf8Min; // the lowest character not overlong
+    public static final int REPLACEMENT = 0xfffd;
+
+    static
+    {
+        for ( int s = 0; s < STATES; s++ )
+        {
+            // C0 controls are executed in most states
+            set( s, 0x00, 0x17, EXECUTE, s );
+            set( s, 0x19, 0x19, EXECUTE, s );
+            set( s, 0x1c, 0x1f, EXECUTE, s );
+            set( s, 0x20, 0xff, IGNORE, s );
+        }
+
+        set( GROUND, 0x20, 0x7e, PRINT, GROUND );
+        set( GROUND, 0x80, 0xff, UTF8, GROUND );
+
+        set( ESCAPE, 0x20, 0x2f, COLLECT, ESCAPE_INTERMEDIATE );
+        set( ESCAPE, 0x30, 0x7e, ESC_DISPATCH, GROUND );
+        set( ESCAPE, '[', '[', IGNORE, CSI_ENTRY );
+        set( ESCAPE, ']', ']', IGNORE, OSC_STRING );
+        set( ESCAPE, 'P', 'P', IGNORE, DCS_ENTRY );
+        set( ESCAPE, 'X', 'X', IGNORE, SOS_PM_APC_STRING );
+        set( ESCAPE, '^', '^', IGNORE, SOS_PM_APC_STRING );
+        set( ESCAPE, '_', '_', IGNORE, SOS_PM_APC_STRING );
+
+        set( ESCAPE_INTERMEDIATE, 0x20, 0x2f, COLLECT, ESCAPE_INTERMEDIATE );
+        set( ESCAPE_INTERMEDIATE, 0x30, 0x7e, ESC_DISPATCH, GROUND );
+
+        set( CSI_ENTRY, 0x20, 0x2f, COLLECT, CSI_INTERMEDIATE );
+        set( CSI_ENTRY, 0x30, 0x39, PARAM, CSI_PARAM );
+        set( CSI_ENTRY, 0x3a, 0x3a, IGNORE, CSI_IGNORE );
+        set( CSI_ENTRY, 0x3b, 0x3b, PARAM, CSI_PARAM );
+        set( CSI_ENTRY, 0x3c, 0x3f, COLLECT, CSI_PARAM );
+        set( CSI_ENTRY, 0x40, 0x7e, CSI_DISPATCH, GROUND );
+
+        set( CSI_PARAM, 0x20, 0x2f, COLLECT, CSI_INTERMEDIATE );
+        set( CSI_PARAM, 0x30, 0x39, PARAM, CSI_PARAM );
+        set( CSI_PARAM, 0x3a, 0x3a, IGNORE, CSI_IGNORE );
+        set( CSI_PARAM, 0x3b, 0x3b, PARAM, CSI_PARAM );
+        set( CSI_PARAM, 0x3c, 0x3f, IGNORE, CSI_IGNORE );
+        set( CSI_PARAM, 0x40, 0x7e, CSI_DISPATCH, GROUND );
+
+        set( CSI_INTERMEDIATE, 0x20, 0x2f, COLLECT, CSI_INTERMEDIATE );
+        set( CSI_INTERMEDIATE, 0x30, 0x3f, IGNORE, CSI_IGNORE );
+        set( CSI_INTERMEDIATE, 0x40, 0x7e, CSI_DISPATCH, GROUND );
+
+        set( CSI_IGNORE, 0x40, 0x7e, IGNORE, GROUND );
+
+        // device control strings are recognised but not acted on
+        for ( int s = DCS_ENTRY; s <= SOS_PM_APC_STRING; s++ )
+        {
+            set( s, 0x00, 0x17, IGNORE, s );
+            set( s, 0x19, 0x19, IGNORE, s );
+            set( s, 0x1c, 0x1f, IGNORE, s );
+        }
+        set( DCS_ENTRY, 0x20, 0x2f, COLLECT, DCS_INTERMEDIATE );
+        set( DCS_ENTRY, 0x30, 0x39, PARAM, DCS_PARAM );
+        set( DCS_ENTRY, 0x3a, 0x3a, IGNORE, DCS_IGNORE );
+        set( DCS_ENTRY, 0x3b, 0x3b, PARAM, DCS_PARAM );
+        set( DCS_ENTRY, 0x3c, 0x3f, COLLECT, DCS_PARAM );
+        set( DCS_ENTRY, 0x40, 0x7e, IGNORE, DCS_PASSTHROUGH );
+
+        set( DCS_PARAM, 0x20, 0x2f, COLLECT, DCS_INTERMEDIATE );
+        set( DCS_PARAM, 0x30, 0x39, PARAM, DCS_PARAM );
+        set( DCS_PARAM, 0x3a, 0x3a, IGNORE, DCS_IGNORE );
+        set( DCS_PARAM, 0x3b, 0x3b, PARAM, DCS_PARAM );
+        set( DCS_PARAM, 0x3c, 0x3f, IGNORE, DCS_IGNORE );
+        set( DCS_PARAM, 0x40, 0x7e, IGNORE, DCS_PASSTHROUGH );
+
+        set( DCS_INTERMEDIATE, 0x20, 0x2f, COLLECT, DCS_INTERMEDIATE );
+        set( DCS_INTERMEDIATE, 0x30, 0x3f, IGNORE, DCS_IGNORE );
+        set( DCS_INTERMEDIATE, 0x40, 0x7e, IGNORE, DCS_PASSTHROUGH );
+
+        // xterm also ends an OSC string with BEL
+        set( OSC_STRING, 0x07, 0x07, IGNORE, GROUND );
+
+        for ( int s = 0; s < STATES; s++ )
+        {
+            // anywhere: CAN and SUB abort, ESC starts over
+            set( s, 0x18, 0x18, EXECUTE, GROUND );
+            set( s, 0x1a, 0x1a, EXECUTE, GROUND );
+            set( s, 0x1b, 0x1b, IGNORE, ESCAPE );
+        }
+    }
+
+    private static void set( int state, int from, int to, int action, int next )
+    {
+        for ( int c = from; c <= to; c++ )
+        {
+            TABLE[ ( state << 8 ) | c ] = (byte) ( ( action << 4 ) | next );
+        }
+    }
+
+    /**
+    * Creates a parser that feeds the specified canvas.
+    */
+    public AnsiParser( TelnetCanvas inCanvas )
+    {
+        canvas = inCanvas;
+        state = GROUND;
+    }
+
+    /**
+    * Parses the specified range of bytes.  Runs of printable
+    * characters in the ground state are handed over in one call.
+    */
+    public void parse( byte[] b, int off, int len )
+    {
+        int end = off + len;
+        int start;
+        int i = off;
+        while ( i < end )
+        {
+            if ( state == GROUND && utf8Remaining == 0 )
+            {
+                start = i;
+                while ( i < end && b[i] >= 0x20 && b[i] < 0x7f ) i++;
+                if ( i > start ) canvas.processData( b, start, i - start );
+                if ( i == end ) break;
+            }
+            parse( b[i++] );
+        }
+    }
+
+    /**
+    * Parses a single byte.
+    */
+    public void parse( byte b )
+    {
+        int c = b & 0xff;
+        int t = TABLE[ ( state << 8 ) | c ];
+        int next = t & 0x0f;
+        
+        if ( utf8Remaining > 0 && ( c & 0xc0 ) != 0x80 )
+        {
+            // a character cut short
+            utf8Remaining = 0;
+            canvas.processChar( REPLACEMENT );
+        }
+
+        switch ( t >> 4 )
+        {
+            case PRINT:
+            case EXECUTE:
+                canvas.processData( b );
+                break;
+
+            case COLLECT:
+                if ( c >= 0x3c )
+                {
+                    privateMarker = c;
+                }
+                else
+                {
+                    intermediate = c;
+                }
+                break;
+
+            case PARAM:
+                if ( paramCount == 0 )
+                {
+                    params[0] = 0;
+                    paramCount = 1;
+                }
+                if ( c == ';' )
+                {
+                    if ( paramCount < MAX_PARAMS ) params[paramCount] = 0;
+                    paramCount++;
+                }
+                else if ( paramCount <= MAX_PARAMS )
+                {
+                    int p = params[paramCount-1] * 10 + ( c - '0' );
+                    params[paramCount-1] = Math.min( p, MAX_PARAM_VALUE );
+                }
+                break;
+
+            case ESC_DISPATCH:
+                canvas.processEscape( b );
+                break;
+
+            case CSI_DISPATCH:
+                canvas.processCommand( b );
+                break;
+
+            case UTF8:
+                decode( c );
+                break;
+        }
+
+        if ( next != state )
+        {
+            if ( next == ESCAPE || next == CSI_ENTRY || next == DCS_ENTRY )
+            {
+                // entering a new sequence
+                paramCount = 0;
+                privateMarker = 0;
+                intermediate = 0;
+            }
+            state = next;
+        }
+    }
+
+    /**
+    * Takes the specified byte of a UTF-8 sequence, passing the
+    * character on once it is complete.
+    */
+    private void decode( int c )
+    {
+        if ( utf8Remaining > 0 )
+        {
+            utf8Char = ( utf8Char << 6 ) | ( c & 0x3f );
+            if ( --utf8Remaining > 0 ) return;
+            if ( utf8Char < utf8Min || utf8Char > 0xffff
+                || ( utf8Char >= 0xd800 && utf8Char <= 0xdfff ) ) // surrogates
+            {
+                utf8Char = REPLACEMENT;
+            }
+            canvas.processChar( utf8Char );
+        }
+        else if ( c >= 0xc2 && c <= 0xdf )
+        {
+            utf8Char = c & 0x1f;
+            utf8Remaining = 1;
+            utf8Min = 0x80;
+        }
+        else if ( c >= 0xe0 && c <= 0xef )
+        {
+            utf8Char = c & 0x0f;
+            utf8Remaining = 2;
+            utf8Min = 0x800;
+        }
+        else if ( c >= 0xf0 && c <= 0xf4 )
+        {
+            utf8Char = c & 0x07;
+            utf8Remaining = 3;
+            utf8Min = 0x10000;
+        }
+        else
+        {
+            // a stray continuation byte, or never valid
+            canvas.processChar( REPLACEMENT );
+        }
+    }
+
+    /**
+    * Returns whether the parser is between sequences.
+    */
+    public boolean isGround()
+    {
+        return state == GROUND;
+    }
+
+    /**
+    * Returns the number of parameters of the current sequence.
+    */
+    public int getParamCount()
+    {
+        return Math.min( paramCount, MAX_PARAMS );
+    }
+
+    /**
+    * Returns the parameter at the specified index, or the
+    * specified default if it was omitted or zero.
+    */
+    public int getParam( int index, int def )
+    {
+        if ( index >= getParamCount() || params[index] == 0 ) return def;
+        return params[index];
+    }
+
+    /**
+    * Returns the private marker ('?', '>', '<' or '=')
+    * of the current sequence, or zero if there was none.
+    */
+    public int getPrivateMarker()
+    {
+        return privateMarker;
+    }
+
+    /**
+    * Returns the last intermediate byte of the current
+    * sequence, or zero if there was none.
+    */
+    public int getIntermediate()
+    {
+        return intermediate;
+    }
+}
@@ -1,18 +1,18 @@
 import java.io.*;
-import javax.microedition.io.*;
 import javax.microedition.lcdui.*;
 import javax.microedition.midlet.*;
 
 public class BlueTerm extends MIDlet implements CommandListener, Runnable {
 	private TelnetCanvas canvas;
-	private StreamConnection conn;
-	private InputStream input;
-	private OutputStream output;
-	private Command killCommand, sttyCommand, escCommand, nonlCommand, clearCommand, scrollCommand, runCommand, exitCommand, okCommand;
-	private TextBox msg;
+	private Transport transport;
+	private OutputWriter output;
+	private SessionRecorder recorder;
+	private Command killCommand, sttyCommand, escCommand, nonlCommand, clearCommand, scrollCommand, statsCommand, sendStatsCommand, runCommand, exitCommand, okCommand;
+	private Command findCommand, findAgainCommand, searchCommand, cancelCommand;
+	private TextBox msg, query;
 
 	public void startApp() {
-		conn = null;
+		transport = null;
 
 		okCommand = new Command("Send", Command.OK, 0);
 		escCommand = new Command("Send as Escape", Command.OK, 0);
@@ -22,7 +22,13 @@ public class BlueTerm extends MIDlet implements CommandListener, Runnable {
 		scrollCommand = new Command("Toggle Scroll", Command.OK, 0);
 		runCommand = new Command("Send Input", Command.OK, 0);
 		sttyCommand = new Command("Send stty rows cols", Command.OK, 0);
+		statsCommand = new Command("Toggle Stats", Command.OK, 0);
+		sendStatsCommand = new Command("Send Stats", Command.OK, 0);
 		exitCommand = new Command("Exit", Command.EXIT, 0);
+		findCommand = new Command("Find", Command.OK, 0);
+		findAgainCommand = new Command("Find Again", Command.OK, 0);
+		searchCommand = new Command("Find", Command.OK, 0);
+		cancelCommand = new Command("Cancel", Command.BACK, 0);
 
 		msg = new TextBox("", "", 100, TextField.ANY);
 		msg.addCommand(okCommand);
@@ -30,13 +36,27 @@ public class BlueTerm extends MIDlet implements CommandListener, Runnable {
 		msg.addCommand(nonlCommand);
 		msg.addCommand(clearCommand);
 
+		query = new TextBox("Find", "", 100, TextField.ANY);
+		query.addCommand(searchCommand);
+		query.addCommand(cancelCommand);
+		query.setCommandListener(this);
+
 		canvas = new TelnetCanvas(Display.getDisplay(this));
+		canvas.setMaxFps(getIntProperty("BT-MaxFps", TelnetCanvas.DEFAULT_MAX_FPS));
+		canvas.setScrollback(getIntProperty("BT-Scrollback", TelnetCanvas.DEFAULT_SCROLLBACK));
+		canvas.setHistory(getIntProperty("BT-History", ScrollbackArchive.DEFAULT_BUDGET));
+		canvas.setPredicting(getIntProperty("BT-PredictEcho", 0) != 0);
+		canvas.getKeymap().load(this);
 		canvas.setup();
 
 		canvas.addCommand(runCommand);
 		canvas.addCommand(killCommand);
 		canvas.addCommand(scrollCommand);
+		canvas.addCommand(findCommand);
+		canvas.addCommand(findAgainCommand);
 		canvas.addCommand(sttyCommand);
+		canvas.addCommand(statsCommand);
+		canvas.addCommand(sendStatsCommand);
 		canvas.addCommand(exitCommand);
 
 		canvas.setCommandListener(this);
@@ -47,20 +67,34 @@ public class BlueTerm extends MIDlet implements CommandListener, Runnable {
 		new Thread(this).start(); // Bluetooth thread
 	}
 
+	/**
+	 * Returns the named JAD property as an int, or the default if it is missing or malformed.
+	 */
+	private int getIntProperty(String name, int def) {
+		String value = getAppProperty(name);
+		if (value == null) return def;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
 	public void sendBuffer(byte buffer) {
+		canvas.predict(buffer);
 		try {
 			output.write(buffer);
-			output.flush();
 		} catch (IOException e) {
 			canvas.receive("Send Failed: " + e.getMessage() + "\n");
 		}
 	}
 
 	public void sendBuffer(byte[] bytes, boolean printNewline) {
+		canvas.predict(bytes, 0, bytes.length);
+		if (printNewline) canvas.predict((byte)'\n');
 		try {
 			output.write(bytes);
-			if (printNewline) output.write("\n".getBytes());
-			output.flush();
+			if (printNewline) output.write((byte)'\n');
 		} catch (IOException e) {
 			canvas.receive("Send Failed: " + e.getMessage() + "\n");
 		}
@@ -88,11 +122,32 @@ public class BlueTerm extends MIDlet implements CommandListener, Runnable {
 			Display.getDisplay(this).setCurrent(canvas);
 		} else if (cmd == scrollCommand) {
 			canvas.setScrolling(!canvas.isScrolling()); // Toggle Scrolling
+		} else if (cmd == findCommand) {
+			Display.getDisplay(this).setCurrent(query);
+		} else if (cmd == searchCommand || cmd == findAgainCommand) {
+			// searches further up each time, from the bottom again once none are left
+			if (canvas.find(query.getString())) {
+				Display.getDisplay(this).setCurrent(canvas);
+			} else {
+				Display.getDisplay(this).setCurrent(new Alert("Find", "Not found: " + query.getString(), null, AlertType.INFO), canvas);
+			}
+		} else if (cmd == cancelCommand) {
+			Display.getDisplay(this).setCurrent(canvas);
 		} else if (cmd == sttyCommand) {
 			sendBuffer(("stty rows " + canvas.getRows() + " cols " + canvas.getColumns()).getBytes(), true);
+		} else if (cmd == statsCommand) {
+			canvas.setShowStats(!canvas.isShowingStats());
+		} else if (cmd == sendStatsCommand) {
+			// a shell comment, so the host can log it without it running anything
+			sendBuffer(("# blueterm " + canvas.getStats()).getBytes(), true);
 		} else if (cmd == exitCommand) {
 			try {
-				conn.close();
+				if (recorder != null) {
+					canvas.setRecorder(null);
+					recorder.close();
+				}
+				if (output != null) output.close(); // sends what is pending first
+				if (transport != null) transport.close();
 			} catch (IOException e) {
 				canvas.receive("Disconnect Failed: " + e.getMessage() + "\n");
 			}
@@ -101,25 +156,51 @@ public class BlueTerm extends MIDlet implements CommandListener, Runnable {
 	}
 
 	public void run() {
+		String record = getAppProperty("BT-Record");
+		if (record != null) {
+			try {
+				recorder = new SessionRecorder(record);
+				canvas.setRecorder(recorder);
+			} catch (IOException e) {
+				canvas.receive("Recording Failed: " + e.getMessage() + "\n");
+			}
+		}
+
 		try {
-			conn = (StreamConnection)Connector.open(getAppProperty("BT-Address"));
+			transport = Transport.open(getAppProperty("BT-Address"));
 		} catch (IOException e) {
 			canvas.receive("Connection Failed: " + e.getMessage() + "\n");
 			return;
 		}
+		transport.setReadChunk(getIntProperty("BT-ReadChunk", transport.getReadChunk()));
+		transport.setWriteBuffer(getIntProperty("BT-WriteBuffer", transport.getWriteBuffer()));
+		if ("deflate".equals(getAppProperty("BT-Compression"))) {
+			transport.inflate(); // host side runs deflate-relay.py
+		}
+		output = new OutputWriter(transport.getOutputStream(), transport.getWriteBuffer());
+		output.setMaxLatency(getIntProperty("BT-WriteLatency", OutputWriter.DEFAULT_MAX_LATENCY));
+		output.start(); // writer thread
+		canvas.setOutputWriter(output);
+
+		// this thread only reads; the queue's thread parses
+		InputQueue queue = new InputQueue(canvas, getIntProperty("BT-ReceiveBuffer", InputQueue.DEFAULT_BUFFER));
+		if ("xon".equals(getAppProperty("BT-FlowControl"))) {
+			queue.setFlowControl(output); // host stops on XOFF, goes on at XON
+		}
+		canvas.setInputQueue(queue);
+		queue.start();
+		String message = "\nDisconnected.\n";
 		try {
-			byte buffer[] = new byte[100];
-			input = conn.openInputStream();
-			output = conn.openOutputStream();
-			canvas.setOutputStream(output);
-			int c;
-			while ((c = input.read()) != -1) {
-				canvas.receive((byte)c);
+			byte buffer[] = new byte[transport.getReadChunk()];
+			int n;
+			while ((n = transport.read(buffer)) != -1) {
+				queue.put(buffer, 0, n);
 			}
-			canvas.receive("\nDisconnected.\n");
 		} catch (IOException e) {
-			canvas.receive("Receive Failed: " + e.getMessage() + "\n");
+			message = "Receive Failed: " + e.getMessage() + "\n";
 		}
+		queue.close(); // after what was read is shown
+		canvas.receive(message);
 	}
 
 	protected void destroyApp(boolean unconditional) {
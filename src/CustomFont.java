@@ -34,9 +34,14 @@
  * nuclear facility. 
  */
 
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 import javax.microedition.lcdui.Font;
 import javax.microedition.lcdui.Graphics;
 import javax.microedition.lcdui.Image;
+import javax.microedition.lcdui.game.Sprite;
 
 /**
 * A custom bitmapped font read from a png file.
@@ -46,6 +51,23 @@ import javax.microedition.lcdui.Image;
 * for compatibility purposes.  However, to render this font
 * you need to call the drawChar, drawChars, drawString, and
 * drawSubstring methods from your paint method.
+*
+* Characters are drawn in the current color of the Graphics.
+* Each style and color is rendered once into its own copy of 
+* the glyph strip, so drawing any character is a single 
+* drawRegion call with no clip changes.
+*
+* The png file holds the first 128 characters.  The others come
+* in pages of 128, each a png file of the same size named after
+* the first with the page number in hex, such as font-4a.png for
+* U+2500 to U+257F.  Pages are read when first drawn from; those
+* that cannot be read are drawn as '?'.
+*
+* Each png file may have a sidecar of the same name ending in
+* .bin, written by tools/font-sidecar.py, holding the metrics
+* and a one bit mask per pixel.  The glyphs are then made from
+* the masks, with no png to decode and no baseline to work out;
+* the png file is only read if there is no sidecar.
 */
 public class CustomFont 
 {
@@ -55,6 +77,42 @@ public class CustomFont
     private int height;
     private int width;
     private Image image;
+    private int background; // the pixel around the glyphs, as at 0, 0 of the first page
+    private CustomFont base; // the font this one was derived from, or itself
+    
+    /**
+    * Pre-rendered glyph strips, most recently used first, keyed
+    * by page, style bits and color; shared with derived fonts and
+    * filled in on first use.  The least recently used strip is 
+    * dropped to make room for a new one.  There is room for all 
+    * sixteen colors of the palette in two styles, plain and bold 
+    * say, as a screen of colored text needs them all at once: 
+    * any fewer, and every run would render a strip, not draw one.
+    */
+    private long[] stripKeys;
+    private Image[] strips;
+    private static final int MAX_STRIPS = 32;
+    private int[] renderSrc; // scratch for renderStrip, kept by the base font
+    private int[] renderDst;
+    
+    /**
+    * Glyph pages past the first, most recently used first, kept 
+    * by the base font alone.  Nothing is allocated until a page 
+    * is needed.  Dropping the least recently used page drops its
+    * strips with it.  Pages found missing are marked in absent,
+    * one bit each, so that they are only looked for once.
+    */
+    private String name;
+    private int[] pageKeys;
+    private Image[] pages;
+    private int[] absent;
+    private static final int MAX_PAGES = 4;
+    private static final int PAGE_SIZE = 128;
+    private static final int PAGE_SHIFT = 7;
+    private static final int SIDECAR_MAGIC = 0x42544631; // "BTF1"
+    private static final int STYLES = 
+        Font.STYLE_BOLD | Font.STYLE_ITALIC | Font.STYLE_UNDERLINED;
+    private static final int WHITE = 0xffffff;
     
     /**
     * Returns a soft font based on the specified 
@@ -68,6 +126,9 @@ public class CustomFont
     {
         Image i;
         String filename = inName;
+        int[] metrics = new int[1];
+        i = readSidecar( filename, metrics );
+        if ( i != null ) return new CustomFont( inName, i, inSize, inStyle, metrics[0] );
         try
         {
             i = Image.createImage( filename );
@@ -79,21 +140,32 @@ public class CustomFont
                 "Could not locate font: " + filename + " : " +  t );
         }
         
-        return new CustomFont( i, inSize, inStyle );
+        return new CustomFont( inName, i, inSize, inStyle, -1 );
     }
 
+    /**
+    * Creates a font from the specified glyphs, working out the
+    * baseline if the specified one is negative.
+    */
     private CustomFont( 
-        Image inImage, int inStyle, int inSize )
+        String inName, Image inImage, int inStyle, int inSize, int inBaseline )
     {
+        name  = inName;
         image = inImage;
         style = inStyle;
         size  = inSize;
+        base  = this;
         
         try
         {
             height = image.getHeight();
-            width  = image.getWidth() / 128;
-            baseline = calculateBaseline();
+            width  = image.getWidth() / PAGE_SIZE;
+            int[] corner = new int[1];
+            image.getRGB( corner, 0, 1, 0, 0, 1, 1 );
+            background = corner[0];
+            baseline = ( inBaseline < 0 ) ? calculateBaseline() : inBaseline;
+            stripKeys = new long[ MAX_STRIPS ];
+            strips = new Image[ MAX_STRIPS ];
         }
         catch ( Throwable t )
         {
@@ -103,6 +175,297 @@ public class CustomFont
         }
     }
     
+    private CustomFont( CustomFont inFont, int inStyle )
+    {
+        image = inFont.image;
+        style = inStyle;
+        size = inFont.size;
+        height = inFont.height;
+        width = inFont.width;
+        baseline = inFont.baseline;
+        background = inFont.background;
+        stripKeys = inFont.stripKeys;
+        strips = inFont.strips;
+        base = inFont.base;
+    }
+    
+    /**
+    * Returns a font with the same glyphs in the specified style.
+    * Derived fonts share their pre-rendered glyphs.
+    */
+    public CustomFont deriveFont( int inStyle )
+    {
+        if ( inStyle == style ) return this;
+        return new CustomFont( this, inStyle );
+    }
+    
+    /**
+    * Returns the glyph strip of the specified page for the 
+    * specified style and color, rendering it from the plain 
+    * glyphs if necessary, or null if the page is missing.
+    */
+    private Image getStrip( int page, int inStyle, int color )
+    {
+        inStyle &= STYLES;
+        color &= WHITE;
+        
+        Image glyphs = ( page == 0 ) ? image : base.getPage( page );
+        if ( glyphs == null ) return null;
+        
+        // the glyphs as loaded are plain white, and can be drawn
+        // as they are unless the png gave them a background
+        if ( inStyle == 0 && color == WHITE && ( background >>> 24 ) == 0 ) return glyphs;
+        
+        long key = ( (long) page << 32 ) | ( inStyle << 24 ) | color;
+        int i;
+        Image strip;
+        for ( i = 0; i < MAX_STRIPS && strips[i] != null; i++ )
+        {
+            if ( stripKeys[i] == key ) break;
+        }
+        if ( i == MAX_STRIPS ) 
+        {
+            i = MAX_STRIPS - 1; // replace the least recently used
+            strip = null;
+        }
+        else
+        {
+            strip = strips[i];
+        }
+        if ( strip == null )
+        {
+            strip = renderStrip( glyphs, inStyle, color );
+        }
+        
+        // move to front
+        for ( ; i > 0; i-- )
+        {
+            stripKeys[i] = stripKeys[i-1];
+            strips[i] = strips[i-1];
+        }
+        stripKeys[0] = key;
+        strips[0] = strip;
+        return strip;
+    }
+    
+    /**
+    * Returns the specified glyph page, reading it if it is not
+    * held, or null if it is missing.
+    */
+    private Image getPage( int page )
+    {
+        if ( pages == null )
+        {
+            pageKeys = new int[ MAX_PAGES ];
+            pages = new Image[ MAX_PAGES ];
+            absent = new int[ ( 0x10000 >> PAGE_SHIFT ) / 32 ];
+        }
+        if ( ( absent[ page >> 5 ] & ( 1 << ( page & 31 ) ) ) != 0 ) return null;
+        
+        int i;
+        Image glyphs;
+        for ( i = 0; i < MAX_PAGES && pages[i] != null; i++ )
+        {
+            if ( pageKeys[i] == page ) break;
+        }
+        if ( i < MAX_PAGES && pages[i] != null )
+        {
+            glyphs = pages[i];
+        }
+        else
+        {
+            glyphs = readPage( page );
+            if ( glyphs == null )
+            {
+                absent[ page >> 5 ] |= 1 << ( page & 31 );
+                return null;
+            }
+            if ( i == MAX_PAGES ) 
+            {
+                i = MAX_PAGES - 1; // replace the least recently used
+                dropStrips( pageKeys[i] );
+            }
+        }
+        
+        // move to front
+        for ( ; i > 0; i-- )
+        {
+            pageKeys[i] = pageKeys[i-1];
+            pages[i] = pages[i-1];
+        }
+        pageKeys[0] = page;
+        pages[0] = glyphs;
+        return glyphs;
+    }
+    
+    /**
+    * Reads the specified glyph page, returning null if there
+    * is none or it does not match the first.
+    */
+    private Image readPage( int page )
+    {
+        int dot = name.lastIndexOf( '.' );
+        if ( dot < 0 ) dot = name.length();
+        String filename = name.substring( 0, dot ) + "-" 
+            + Integer.toHexString( page ) + name.substring( dot );
+        Image i = readSidecar( filename, new int[1] );
+        try
+        {
+            if ( i == null ) i = Image.createImage( filename );
+            if ( i.getWidth() == image.getWidth() && i.getHeight() == height ) return i;
+        }
+        catch ( IOException e )
+        {
+            // no such page
+        }
+        return null;
+    }
+    
+    /**
+    * Returns the glyphs held in the sidecar of the specified png
+    * file, also putting the baseline in metrics[0], or returns 
+    * null if there is no sidecar.  A sidecar is big endian:
+    * 
+    *   int   0x42544631, "BTF1"
+    *   byte  glyph width, glyph height, baseline, glyph count
+    *   then  a row of bits, most significant first, across all
+    *         the glyphs for each line of pixels; 1 is ink
+    * 
+    * with each row padded to a whole byte.
+    */
+    private static Image readSidecar( String filename, int[] metrics )
+    {
+        int dot = filename.lastIndexOf( '.' );
+        if ( dot < 0 ) dot = filename.length();
+        InputStream in = CustomFont.class.getResourceAsStream( 
+            filename.substring( 0, dot ) + ".bin" );
+        if ( in == null ) return null;
+        
+        try
+        {
+            DataInputStream data = new DataInputStream( in );
+            if ( data.readInt() != SIDECAR_MAGIC ) return null;
+            int glyphWidth = data.readUnsignedByte();
+            int glyphHeight = data.readUnsignedByte();
+            metrics[0] = data.readUnsignedByte();
+            int imageWidth = glyphWidth * data.readUnsignedByte();
+            int stride = ( imageWidth + 7 ) / 8;
+            byte[] bits = new byte[ stride * glyphHeight ];
+            data.readFully( bits );
+            
+            int[] argb = new int[ imageWidth * glyphHeight ];
+            for ( int y = 0; y < glyphHeight; y++ )
+            {
+                for ( int x = 0; x < imageWidth; x++ )
+                {
+                    if ( ( bits[ y*stride + ( x >> 3 ) ] & ( 0x80 >> ( x & 7 ) ) ) != 0 )
+                    {
+                        argb[ y*imageWidth + x ] = 0xff000000 | WHITE;
+                    }
+                }
+            }
+            return Image.createRGBImage( argb, imageWidth, glyphHeight, true );
+        }
+        catch ( IOException e )
+        {
+            return null; // truncated: fall back to the png
+        }
+        finally
+        {
+            try
+            {
+                in.close();
+            }
+            catch ( IOException e )
+            {
+                // nothing more to read anyway
+            }
+        }
+    }
+    
+    /**
+    * Drops the strips rendered from the specified page.
+    */
+    private void dropStrips( int page )
+    {
+        int j = 0;
+        for ( int i = 0; i < MAX_STRIPS && strips[i] != null; i++ )
+        {
+            if ( (int) ( stripKeys[i] >> 32 ) != page )
+            {
+                stripKeys[j] = stripKeys[i];
+                strips[j++] = strips[i];
+            }
+        }
+        for ( ; j < MAX_STRIPS; j++ ) strips[j] = null;
+    }
+    
+    /**
+    * Renders the glyph strip for the specified style and color
+    * from the specified plain glyphs.
+    */
+    private Image renderStrip( Image glyphs, int inStyle, int color )
+    {
+        int imageWidth = glyphs.getWidth();
+        if ( base.renderSrc == null )
+        {
+            // every page is the size of the first
+            base.renderSrc = new int[ imageWidth * height ];
+            base.renderDst = new int[ imageWidth * height ];
+        }
+        int[] src = base.renderSrc;
+        int[] dst = base.renderDst;
+        glyphs.getRGB( src, 0, imageWidth, 0, 0, imageWidth, height );
+        
+        // any pixel differing from the top-left one of the first
+        // page is ink; a page's own may be ink, as in U+2580.  The
+        // rest is left transparent, not to cover the cell's color
+        int ink = 0xff000000 | color;
+        
+        boolean bold = ( inStyle & Font.STYLE_BOLD ) != 0;
+        boolean italic = ( inStyle & Font.STYLE_ITALIC ) != 0;
+        int shift, x, p;
+        for ( int y = 0; y < height; y++ )
+        {
+            // italics: top half is shifted right
+            shift = ( italic && y < height/2 ) ? 1 : 0;
+            for ( int i = 0; i < imageWidth; i++ )
+            {
+                x = i % width;
+                p = background;
+                if ( x >= shift )
+                {
+                    p = src[ y*imageWidth + i - shift ];
+                    // bold: overstrike one pixel to the right
+                    if ( bold && p == background && x > shift ) 
+                    {
+                        p = src[ y*imageWidth + i - shift - 1 ];
+                    }
+                }
+                if ( p != background ) 
+                {
+                    // keep the ink's alpha, in the new color
+                    p = ( p & 0xff000000 ) | color;
+                }
+                else
+                {
+                    p = 0;
+                }
+                dst[ y*imageWidth + i ] = p;
+            }
+        }
+        
+        if ( ( inStyle & Font.STYLE_UNDERLINED ) != 0 && baseline + 2 < height )
+        {
+            for ( int i = 0; i < imageWidth; i++ )
+            {
+                dst[ (baseline+2)*imageWidth + i ] = ink;
+            }
+        }
+        
+        return Image.createRGBImage( dst, imageWidth, height, true );
+    }
+    
     private int calculateBaseline()
     {
         // get baseline: defaults to last row
@@ -111,11 +474,6 @@ public class CustomFont
         int max = 0;
         int total;
         int[] row = new int[ imageWidth ];
-        int background;
-        
-        // determine background color: assume it's at 0, 0
-        image.getRGB( row, 0, 1, 0, 0, 1, 1 );
-        background = row[0];
 
         // here's the heuristic: find the row on the bottom
         // half of the image with the most non-background pixels
@@ -206,14 +564,33 @@ public class CustomFont
     public void drawChar( 
         Graphics g, char character, int x, int y, int anchor )
     {
-        int clipX = g.getClipX();
-        int clipY = g.getClipY();
-        int clipW = g.getClipWidth();
-        int clipH = g.getClipHeight();
-
-        drawCharInternal( g, character, x, y, anchor );
+        if ( (anchor & g.RIGHT) != 0 )
+        {
+            x -= width;
+        }
+        else
+        if ( (anchor & g.HCENTER) != 0 )
+        {
+            x -= width / 2;
+        }
+        
+        if ( (anchor & g.BOTTOM) != 0 )
+        {
+            y -= height;
+        }
+        else
+        if ( (anchor & g.VCENTER) != 0 )
+        {
+            y -= height/2;
+        }
         
-        g.setClip( clipX, clipY, clipW, clipH );
+        Image glyphs = getStrip( character >> PAGE_SHIFT, style, g.getColor() );
+        if ( glyphs == null )
+        {
+            glyphs = getStrip( 0, style, g.getColor() );
+            character = '?';
+        }
+        drawCharInternal( g, glyphs, character, x, y );
     }
     
     /**
@@ -243,68 +620,43 @@ public class CustomFont
             y -= height/2;
         }
         
-        int clipX = g.getClipX();
-        int clipY = g.getClipY();
-        int clipW = g.getClipWidth();
-        int clipH = g.getClipHeight();
-
+        int color = g.getColor();
+        Image first = getStrip( 0, style, color );
+        Image glyphs = first;
+        int page = 0;
+        boolean underlined = ( style & Font.STYLE_UNDERLINED ) != 0;
         char c;
         for ( int i = 0; i < length; i++ )
         {  
             c = data[offset+i];
-            drawCharInternal( g, c, x, y, g.TOP|g.LEFT );
+            if ( ( c >> PAGE_SHIFT ) != page )
+            {
+                page = c >> PAGE_SHIFT;
+                glyphs = ( page == 0 ) ? first : getStrip( page, style, color );
+            }
+            
+            if ( glyphs == null )
+            {
+                drawCharInternal( g, first, '?', x, y );
+            }
+            else if ( c != ' ' || underlined )
+            {
+                // nothing to draw for a plain space
+                drawCharInternal( g, glyphs, c, x, y );
+            }
             x += width;
         }
-        
-        g.setClip( clipX, clipY, clipW, clipH );
     }
     
     /**
-    * Draws the actual characters without worrying about
-    * saving and restoring the existing clip region.
+    * Blits a single glyph from the specified strip 
+    * with its top left corner at x, y.
     */
     private void drawCharInternal( 
-        Graphics g, char character, int x, int y, int anchor )
+        Graphics g, Image glyphs, char character, int x, int y )
     {
-        if ( ( style & Font.STYLE_ITALIC ) != 0 )
-        {
-            // draw italicized: top half is shifted right
-            g.setClip( x + 1, y, width, height/2 );
-            g.drawImage( 
-                image, x - width*character + 1, y, anchor );
-            g.setClip( x, y+height/2, width, height/2 );
-            g.drawImage( 
-                image, x - width*character, y, anchor );
-            
-            if ( ( style & Font.STYLE_BOLD ) != 0 )
-            {
-            g.setClip( x, y, width, height/2 );
-            g.drawImage( 
-                image, x - width*character + 2, y, anchor );
-            g.setClip( x, y+height/2, width, height/2 );
-            g.drawImage( 
-                image, x - width*character + 1, y, anchor );
-            }
-        }
-        else 
-        {
-            // draw normally
-            g.setClip( x, y, width, height );
-            g.drawImage( 
-                image, x - width*character, y, anchor );
-            
-            if ( ( style & Font.STYLE_BOLD ) != 0 )
-            {
-                g.drawImage( 
-                    image, x - width*character + 1, y, anchor );
-            }
-        }
-            
-        if ( ( style & Font.STYLE_UNDERLINED ) != 0 )
-        {
-            g.drawLine( 
-                x, y + baseline + 2, x + width, y + baseline + 2 );
-        }
+        g.drawRegion( glyphs, width*( character & ( PAGE_SIZE - 1 ) ), 0, width, height,
+            Sprite.TRANS_NONE, x, y, g.TOP|g.LEFT );
     }
     
     /**
@@ -0,0 +1,427 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+* Streaming decompressor for raw deflate data (RFC 1951), as
+* written by host/deflate-relay.py, for devices without
+* java.util.zip.
+*
+* Output is decoded into the fixed 32K history window and read
+* straight out of it, so nothing is allocated per block.  The
+* sender is expected to flush (Z_SYNC_FLUSH) whenever it pauses,
+* which leaves the stream on a byte boundary after an empty stored
+* block: available() and read() only decode while input is at hand
+* or decoded bytes are still owed, so a flushed screenful is always
+* handed over without waiting for the next one.
+*/
+public class InflateInputStream extends InputStream
+{
+    private static final int WINDOW = 32768;
+    private static final int FAST_BITS = 9;
+
+    // decoder states
+    private static final int HEADER = 0;
+    private static final int STORED = 1;
+    private static final int CODES = 2;
+    private static final int DONE = 3;
+
+    private static final short[] LENGTH_BASE = {
+        3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+        35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+    private static final byte[] LENGTH_EXTRA = {
+        0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+        3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+    private static final short[] DISTANCE_BASE = {
+        1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+        257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145,
+        8193, 12289, 16385, 24577 };
+    private static final byte[] DISTANCE_EXTRA = {
+        0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+        7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+    private static final byte[] CODE_LENGTH_ORDER = {
+        16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+
+    private InputStream in;
+    private boolean eof;
+    private int bits; // bit buffer, least significant bit first
+    private int bitCount;
+
+    private byte[] window = new byte[ WINDOW ];
+    private int pos; // where the next byte is decoded to
+    private int pending; // decoded bytes not yet read, ending at pos
+    private int written; // bytes decoded so far, up to WINDOW
+
+    private int state = HEADER;
+    private boolean lastBlock;
+    private int storedLeft;
+    private int copyLength; // match still to be copied
+    private int copyDistance;
+
+    /**
+    * Huffman codes in canonical form: the number of codes of each
+    * length and the symbols in code order, plus a lookup of
+    * (symbol << 4 | length) by the next FAST_BITS bits for the
+    * short codes, which are nearly all of them.
+    */
+    private short[] literalCount = new short[16];
+    private short[] literalSymbol = new short[288];
+    private short[] literalFast = new short[ 1 << FAST_BITS ];
+    private short[] distanceCount = new short[16];
+    private short[] distanceSymbol = new short[32];
+    private short[] distanceFast = new short[ 1 << FAST_BITS ];
+    private short[] lengthCount = new short[16];
+    private short[] lengthSymbol = new short[19];
+    private short[] lengthFast = new short[ 1 << FAST_BITS ];
+    private short[] lengths = new short[ 288 + 32 ];
+    private short[] offsets = new short[16];
+
+    /**
+    * Creates a stream that inflates the specified stream.
+    */
+    public InflateInputStream( InputStream stream )
+    {
+        in = stream;
+    }
+
+    /**
+    * Reads one byte, waiting for input if none is decoded yet.
+    */
+    public int read() throws IOException
+    {
+        if ( pending == 0 ) inflate( true );
+        if ( pending == 0 ) return -1;
+        return window[ ( pos - pending-- ) & ( WINDOW - 1 ) ] & 0xff;
+    }
+
+    /**
+    * Reads up to len bytes, waiting for input only if no
+    * bytes are decoded yet.
+    */
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+        if ( len == 0 ) return 0;
+        if ( pending == 0 ) inflate( true );
+        if ( pending == 0 ) return -1;
+
+        int n = Math.min( len, pending );
+        int from = ( pos - pending ) & ( WINDOW - 1 );
+        int first = Math.min( n, WINDOW - from ); // up to the wrap
+        System.arraycopy( window, from, b, off, first );
+        System.arraycopy( window, 0, b, off + first, n - first );
+        pending -= n;
+        return n;
+    }
+
+    /**
+    * Returns the number of bytes that can be read without
+    * waiting, decoding whatever input has already arrived.
+    */
+    public int available() throws IOException
+    {
+        inflate( false );
+        return pending;
+    }
+
+    public void close() throws IOException
+    {
+        in.close();
+    }
+
+    /**
+    * Decodes until the window is full of unread bytes or the
+    * stream ends.  Unless waiting is allowed, stops as soon as
+    * no buffered or available input is left, which only happens
+    * on the byte boundary after a flush; if it is allowed, waits
+    * until at least one byte is decoded and then carries on
+    * without waiting.
+    */
+    private void inflate( boolean wait ) throws IOException
+    {
+        int symbol, n;
+        while ( pending < WINDOW )
+        {
+            if ( copyLength > 0 )
+            {
+                // as much of the match as fits
+                n = Math.min( copyLength, WINDOW - pending );
+                copyLength -= n;
+                pending += n;
+                written = Math.min( WINDOW, written + n );
+                while ( n-- > 0 )
+                {
+                    window[pos] = window[ ( pos - copyDistance ) & ( WINDOW - 1 ) ];
+                    pos = ( pos + 1 ) & ( WINDOW - 1 );
+                }
+                continue;
+            }
+            if ( state == DONE ) return;
+
+            if ( pending > 0 ) wait = false;
+            if ( !wait && bitCount == 0 && in.available() == 0 ) return;
+
+            switch ( state )
+            {
+                case HEADER:
+                    lastBlock = getBits( 1 ) == 1;
+                    switch ( getBits( 2 ) )
+                    {
+                        case 0:
+                            // stored: lengths start on a byte boundary
+                            getBits( bitCount & 7 );
+                            storedLeft = getBits( 16 );
+                            if ( ( storedLeft ^ 0xffff ) != getBits( 16 ) )
+                            {
+                                throw new IOException( "Bad stored block length" );
+                            }
+                            state = STORED;
+                            break;
+
+                        case 1:
+                            fixedCodes();
+                            state = CODES;
+                            break;
+
+                        case 2:
+                            dynamicCodes();
+                            state = CODES;
+                            break;
+
+                        default:
+                            throw new IOException( "Bad block type" );
+                    }
+                    break;
+
+                case STORED:
+                    if ( storedLeft == 0 )
+                    {
+                        endBlock();
+                        break;
+                    }
+                    n = Math.min( storedLeft, WINDOW - pending );
+                    n = Math.min( n, WINDOW - pos ); // up to the wrap
+                    if ( bitCount > 0 )
+                    {
+                        // whole bytes left over in the bit buffer
+                        window[pos] = (byte) getBits( 8 );
+                        n = 1;
+                    }
+                    else
+                    {
+                        if ( !wait ) n = Math.min( n, in.available() );
+                        n = in.read( window, pos, n );
+                        if ( n <= 0 ) throw new IOException( "Unexpected end of stream" );
+                    }
+                    storedLeft -= n;
+                    pos = ( pos + n ) & ( WINDOW - 1 );
+                    pending += n;
+                    written = Math.min( WINDOW, written + n );
+                    break;
+
+                case CODES:
+                    symbol = decode( literalCount, literalSymbol, literalFast );
+                    if ( symbol < 256 )
+                    {
+                        window[pos] = (byte) symbol;
+                        pos = ( pos + 1 ) & ( WINDOW - 1 );
+                        pending++;
+                        if ( written < WINDOW ) written++;
+                    }
+                    else if ( symbol == 256 )
+                    {
+                        endBlock();
+                    }
+                    else
+                    {
+                        symbol -= 257;
+                        if ( symbol >= 29 ) throw new IOException( "Bad length code" );
+                        copyLength = LENGTH_BASE[symbol] + getBits( LENGTH_EXTRA[symbol] );
+                        symbol = decode( distanceCount, distanceSymbol, distanceFast );
+                        if ( symbol >= 30 ) throw new IOException( "Bad distance code" );
+                        copyDistance = DISTANCE_BASE[symbol] + getBits( DISTANCE_EXTRA[symbol] );
+                        if ( copyDistance > written ) throw new IOException( "Distance too far back" );
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void endBlock()
+    {
+        state = lastBlock ? DONE : HEADER;
+    }
+
+    /**
+    * Returns the next n bits (at most 16), waiting for input
+    * as needed.
+    */
+    private int getBits( int n ) throws IOException
+    {
+        int c;
+        while ( bitCount < n )
+        {
+            if ( ( c = in.read() ) == -1 ) throw new IOException( "Unexpected end of stream" );
+            bits |= c << bitCount;
+            bitCount += 8;
+        }
+        int value = bits & ( ( 1 << n ) - 1 );
+        bits >>>= n;
+        bitCount -= n;
+        return value;
+    }
+
+    /**
+    * Decodes one symbol with the specified code.
+    */
+    private int decode( short[] count, short[] symbol, short[] fast ) throws IOException
+    {
+        // look the next bits up, if the stream has that many
+        int c;
+        while ( bitCount < FAST_BITS && !eof )
+        {
+            if ( bitCount > 0 && in.available() == 0 ) break; // may be enough already
+            if ( ( c = in.read() ) == -1 )
+            {
+                eof = true;
+                break;
+            }
+            bits |= c << bitCount;
+            bitCount += 8;
+        }
+        int entry = fast[ bits & ( ( 1 << FAST_BITS ) - 1 ) ];
+        if ( entry != 0 && ( entry & 15 ) <= bitCount )
+        {
+            bits >>>= entry & 15;
+            bitCount -= entry & 15;
+            return entry >> 4;
+        }
+
+        // longer codes a bit at a time: code is the code so far,
+        // first the first code of this length, index its symbol
+        int code = 0, first = 0, index = 0;
+        for ( int len = 1; len < 16; len++ )
+        {
+            code |= getBits( 1 );
+            c = count[len];
+            if ( code - first < c ) return symbol[ index + code - first ];
+            index += c;
+            first = ( first + c ) << 1;
+            code <<= 1;
+        }
+        throw new IOException( "Bad code" );
+    }
+
+    /**
+    * Sets up the codes of a fixed Huffman block.
+    */
+    private void fixedCodes() throws IOException
+    {
+        int i;
+        for ( i = 0; i < 144; i++ ) lengths[i] = 8;
+        for ( ; i < 256; i++ ) lengths[i] = 9;
+        for ( ; i < 280; i++ ) lengths[i] = 7;
+        for ( ; i < 288; i++ ) lengths[i] = 8;
+        build( lengths, 0, 288, literalCount, literalSymbol, literalFast );
+        for ( i = 0; i < 30; i++ ) lengths[i] = 5;
+        build( lengths, 0, 30, distanceCount, distanceSymbol, distanceFast );
+    }
+
+    /**
+    * Reads the codes of a dynamic Huffman block.
+    */
+    private void dynamicCodes() throws IOException
+    {
+        int literals = getBits( 5 ) + 257;
+        int distances = getBits( 5 ) + 1;
+        int codeLengths = getBits( 4 ) + 4;
+        if ( literals > 286 || distances > 30 ) throw new IOException( "Bad code counts" );
+
+        int i;
+        for ( i = 0; i < 19; i++ )
+        {
+            lengths[ CODE_LENGTH_ORDER[i] ] = (short) ( ( i < codeLengths ) ? getBits( 3 ) : 0 );
+        }
+        build( lengths, 0, 19, lengthCount, lengthSymbol, lengthFast );
+
+        int symbol, repeat, value;
+        i = 0;
+        while ( i < literals + distances )
+        {
+            symbol = decode( lengthCount, lengthSymbol, lengthFast );
+            if ( symbol < 16 )
+            {
+                lengths[ i++ ] = (short) symbol;
+                continue;
+            }
+            value = 0;
+            if ( symbol == 16 )
+            {
+                if ( i == 0 ) throw new IOException( "Bad repeat" );
+                value = lengths[ i - 1 ];
+                repeat = 3 + getBits( 2 );
+            }
+            else if ( symbol == 17 )
+            {
+                repeat = 3 + getBits( 3 );
+            }
+            else
+            {
+                repeat = 11 + getBits( 7 );
+            }
+            if ( i + repeat > literals + distances ) throw new IOException( "Bad repeat" );
+            while ( repeat-- > 0 ) lengths[ i++ ] = (short) value;
+        }
+        if ( lengths[256] == 0 ) throw new IOException( "No end of block code" );
+
+        build( lengths, 0, literals, literalCount, literalSymbol, literalFast );
+        build( lengths, literals, distances, distanceCount, distanceSymbol, distanceFast );
+    }
+
+    /**
+    * Builds the canonical code for the n code lengths starting
+    * at the specified offset.
+    */
+    private void build( short[] length, int off, int n,
+        short[] count, short[] symbol, short[] fast ) throws IOException
+    {
+        int len, i;
+        for ( len = 0; len < 16; len++ ) count[len] = 0;
+        for ( i = 0; i < n; i++ ) count[ length[ off + i ] ]++;
+        count[0] = 0;
+
+        // over-subscribed codes are invalid, incomplete ones allowed
+        int left = 1;
+        for ( len = 1; len < 16; len++ )
+        {
+            left = ( left << 1 ) - count[len];
+            if ( left < 0 ) throw new IOException( "Bad code lengths" );
+        }
+
+        offsets[1] = 0;
+        for ( len = 1; len < 15; len++ ) offsets[ len + 1 ] = (short) ( offsets[len] + count[len] );
+        for ( i = 0; i < n; i++ )
+        {
+            len = length[ off + i ];
+            if ( len != 0 ) symbol[ offsets[len]++ ] = (short) i;
+        }
+
+        // the short codes, bit reversed, as stored in the stream
+        for ( i = 0; i < fast.length; i++ ) fast[i] = 0;
+        int code = 0, index = 0, reversed, step;
+        for ( len = 1; len <= FAST_BITS; len++ )
+        {
+            for ( i = 0; i < count[len]; i++ )
+            {
+                reversed = 0;
+                for ( int b = 0; b < len; b++ ) reversed |= ( ( code >> b ) & 1 ) << ( len - 1 - b );
+                step = 1 << len;
+                for ( int j = reversed; j < fast.length; j += step )
+                {
+                    fast[j] = (short) ( ( symbol[index] << 4 ) | len );
+                }
+                code++;
+                index++;
+            }
+            code <<= 1;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.IOException;
+
+/**
+* Carries bytes read from the connection to the canvas: the
+* reading thread puts them in a ring buffer, and a thread of
+* its own parses them from there in batches, so reading goes on
+* while the canvas is busy parsing or being painted.
+*
+* There is one thread at each end of the ring, and each only
+* moves its own end, so bytes pass without locking; the lock is
+* only taken to sleep while the ring is empty or full, and to
+* wake the other end.  Batches are parsed in place, and their
+* room only given back once the canvas is done with them.
+*
+* With flow control, the host is sent XOFF once the queue fills
+* past three quarters, to stop it before the reading thread has
+* to, and XON once the canvas has taken it back down to a
+* quarter.  Output the host has already sent still arrives after
+* XOFF, into the last quarter; but what it has yet to print waits
+* on the host rather than in the Bluetooth buffers, so that
+* anything typed, ^C above all, takes effect without the backlog
+* to get through first.
+*/
+public class InputQueue implements Runnable
+{
+    public static final int DEFAULT_BUFFER = 8192;
+    public static final byte XON = 0x11;
+    public static final byte XOFF = 0x13;
+    private static final int BATCH = 2048;
+
+    private TelnetCanvas canvas;
+    private byte[] buffer; // circular, a power of two long
+    private int mask;
+    private volatile int head; // bytes taken so far, wrapping around
+    private volatile int tail; // bytes put so far
+    private volatile boolean readerWaiting;
+    private volatile boolean writerWaiting;
+    private volatile boolean closed;
+    private volatile boolean stopped;
+    private OutputWriter flowControl;
+    private volatile boolean paused; // XOFF sent, XON not yet
+    private int pauses;
+
+    /**
+    * Creates a queue feeding the specified canvas, holding
+    * at least the specified number of bytes.
+    */
+    public InputQueue( TelnetCanvas canvas, int size )
+    {
+        this.canvas = canvas;
+        int length = 256;
+        while ( length < size ) length <<= 1;
+        buffer = new byte[ length ];
+        mask = length - 1;
+    }
+
+    /**
+    * Sends XOFF and XON on the specified writer as the queue
+    * fills and drains, or no longer if null.
+    */
+    public void setFlowControl( OutputWriter writer )
+    {
+        flowControl = writer;
+    }
+
+    /**
+    * Returns the number of times the host was sent XOFF.
+    */
+    public int getPauses()
+    {
+        return pauses;
+    }
+
+    /**
+    * Starts the parsing thread.
+    */
+    public void start()
+    {
+        new Thread( this ).start();
+    }
+
+    /**
+    * Queues the specified bytes, waiting for room as needed.
+    */
+    public void put( byte[] b, int off, int len ) throws IOException
+    {
+        int n, space;
+        while ( len > 0 )
+        {
+            space = buffer.length - ( tail - head );
+            if ( space == 0 )
+            {
+                synchronized ( this )
+                {
+                    writerWaiting = true;
+                    while ( tail - head == buffer.length && !stopped ) await();
+                    writerWaiting = false;
+                }
+                if ( stopped ) throw new IOException( "Queue closed" );
+                continue;
+            }
+            n = Math.min( len, space );
+            n = Math.min( n, buffer.length - ( tail & mask ) ); // up to the wrap
+            System.arraycopy( b, off, buffer, tail & mask, n );
+            tail += n; // publishes the bytes
+            if ( readerWaiting ) wake();
+            if ( !paused && tail - head > buffer.length - buffer.length / 4 ) pause();
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+    * Parses whatever is still queued, then stops the parsing
+    * thread.  Returns once the last bytes have been parsed.
+    */
+    public void close()
+    {
+        closed = true;
+        synchronized ( this )
+        {
+            notifyAll();
+            writerWaiting = true;
+            while ( !stopped ) await();
+            writerWaiting = false;
+        }
+    }
+
+    /**
+    * Parses queued bytes until closed.
+    */
+    public void run()
+    {
+        int n;
+        try
+        {
+            while ( true )
+            {
+                n = tail - head;
+                if ( n == 0 )
+                {
+                    if ( closed && tail == head ) break;
+                    if ( paused ) resume(); // drained before XOFF was flagged
+                    synchronized ( this )
+                    {
+                        readerWaiting = true;
+                        while ( tail == head && !closed && !paused ) await();
+                        readerWaiting = false;
+                    }
+                    continue;
+                }
+                n = Math.min( n, BATCH );
+                n = Math.min( n, buffer.length - ( head & mask ) ); // up to the wrap
+                canvas.receive( buffer, head & mask, n );
+                head += n; // gives the room back
+                if ( writerWaiting ) wake();
+                if ( paused && tail - head <= buffer.length / 4 ) resume();
+            }
+        }
+        finally
+        {
+            stopped = true;
+            wake();
+        }
+    }
+
+    /**
+    * Tells the host to stop sending, from the reading thread.
+    * Only flagged once XOFF is queued, so XON cannot overtake
+    * it; and if the parsing thread has emptied the queue by
+    * then, it is woken to send XON straight away.
+    */
+    private void pause()
+    {
+        if ( flowControl == null ) return;
+        try
+        {
+            flowControl.write( XOFF );
+            paused = true;
+            pauses++;
+            if ( readerWaiting ) wake();
+        }
+        catch ( IOException exc )
+        {
+            // the reading thread finds out soon enough
+        }
+    }
+
+    /**
+    * Tells the host to go on, from the parsing thread.
+    */
+    private void resume()
+    {
+        try
+        {
+            if ( flowControl != null ) flowControl.write( XON );
+        }
+        catch ( IOException exc )
+        {
+            // nothing more will be read
+        }
+        paused = false;
+    }
+
+    private synchronized void wake()
+    {
+        notifyAll();
+    }
+
+    /**
+    * Waits to be woken, with the lock held.
+    */
+    private void await()
+    {
+        try
+        {
+            wait();
+        }
+        catch ( InterruptedException exc )
+        {
+            // the caller checks again
+        }
+    }
+}
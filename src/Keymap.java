@@ -0,0 +1,208 @@
+import javax.microedition.lcdui.Canvas;
+import javax.microedition.midlet.MIDlet;
+
+/**
+* Maps keys to the bytes they send.  Every sequence is worked out
+* when the map is made, so a key press allocates nothing, and
+* goes out as one write however long its sequence: a macro such
+* as "cd /var/log && tail -f syslog\n" is no different from an
+* arrow key.
+*
+* A key is looked up by its key code, then by its game action,
+* in the table for the cursor key mode: NORMAL, or APPLICATION
+* once the host asks for it with ESC [ ? 1 h, as vim and less do.
+* Keys not in the APPLICATION table send what they do in NORMAL.
+*
+* The defaults can be changed from properties named BT-Key-<key>,
+* or BT-AppKey-<key> for application mode, where the key is one
+* of 0-9, STAR, POUND, UP, DOWN, LEFT, RIGHT, FIRE or GAME_A-D.
+* Values are text with escapes: \e, \r, \n, \t, \b, \\, \xHH,
+* and ^X for control characters (^^ for ^ itself); a \x without two
+* hex digits is sent as written.  An empty value leaves the key to
+* its game action, if any.
+*/
+public class Keymap
+{
+    public static final int NORMAL = 0;
+    public static final int APPLICATION = 1;
+    private static final String[] PREFIXES = { "BT-Key-", "BT-AppKey-" };
+    private static final int MAX_KEYS = 32;
+
+    private static final String[] KEY_NAMES = { "0", "1", "2", "3", "4",
+        "5", "6", "7", "8", "9", "STAR", "POUND" };
+    private static final int[] KEYS = { Canvas.KEY_NUM0, Canvas.KEY_NUM1,
+        Canvas.KEY_NUM2, Canvas.KEY_NUM3, Canvas.KEY_NUM4, Canvas.KEY_NUM5,
+        Canvas.KEY_NUM6, Canvas.KEY_NUM7, Canvas.KEY_NUM8, Canvas.KEY_NUM9,
+        Canvas.KEY_STAR, Canvas.KEY_POUND };
+    private static final String[] ACTION_NAMES = { "UP", "DOWN", "LEFT", "RIGHT",
+        "FIRE", "GAME_A", "GAME_B", "GAME_C", "GAME_D" };
+    private static final int[] ACTIONS = { Canvas.UP, Canvas.DOWN, Canvas.LEFT,
+        Canvas.RIGHT, Canvas.FIRE, Canvas.GAME_A, Canvas.GAME_B, Canvas.GAME_C,
+        Canvas.GAME_D };
+
+    // by mode, then by key code (codes[i]) or game action
+    private int[] codes = new int[ MAX_KEYS ];
+    private int codeCount;
+    private byte[][][] byCode = new byte[ 2 ][ MAX_KEYS ][];
+    private byte[][][] byAction = new byte[ 2 ][ Canvas.GAME_D + 1 ][];
+
+    /**
+    * Creates a map with the default keys: arrows and fire for
+    * cursor movement and newline; 1 return, 7 backspace, 3 and
+    * 9 page up and down, 0 space.
+    */
+    public Keymap()
+    {
+        map( NORMAL, "UP", "\\e[A" );
+        map( NORMAL, "DOWN", "\\e[B" );
+        map( NORMAL, "RIGHT", "\\e[C" );
+        map( NORMAL, "LEFT", "\\e[D" );
+        map( NORMAL, "FIRE", "\\n" );
+        map( APPLICATION, "UP", "\\eOA" );
+        map( APPLICATION, "DOWN", "\\eOB" );
+        map( APPLICATION, "RIGHT", "\\eOC" );
+        map( APPLICATION, "LEFT", "\\eOD" );
+        map( NORMAL, "1", "\\r" );
+        map( NORMAL, "7", "\\b" );
+        map( NORMAL, "3", "\\e[5~" );
+        map( NORMAL, "9", "\\e[6~" );
+        map( NORMAL, "0", " " );
+    }
+
+    /**
+    * Applies any BT-Key- and BT-AppKey- properties of the
+    * specified MIDlet.
+    */
+    public void load( MIDlet midlet )
+    {
+        String value;
+        for ( int mode = NORMAL; mode <= APPLICATION; mode++ )
+        {
+            for ( int i = 0; i < KEY_NAMES.length; i++ )
+            {
+                value = midlet.getAppProperty( PREFIXES[mode] + KEY_NAMES[i] );
+                if ( value != null ) map( mode, KEY_NAMES[i], value );
+            }
+            for ( int i = 0; i < ACTION_NAMES.length; i++ )
+            {
+                value = midlet.getAppProperty( PREFIXES[mode] + ACTION_NAMES[i] );
+                if ( value != null ) map( mode, ACTION_NAMES[i], value );
+            }
+        }
+    }
+
+    /**
+    * Maps the named key, in the specified mode, to the bytes
+    * of the specified text with escapes, or unmaps it if the
+    * text is empty.
+    */
+    public void map( int mode, String name, String text )
+    {
+        byte[] sequence = ( text.length() > 0 ) ? unescape( text ) : null;
+        for ( int i = 0; i < ACTION_NAMES.length; i++ )
+        {
+            if ( ACTION_NAMES[i].equals( name ) ) byAction[mode][ ACTIONS[i] ] = sequence;
+        }
+        for ( int i = 0; i < KEY_NAMES.length; i++ )
+        {
+            if ( KEY_NAMES[i].equals( name ) ) byCode[mode][ slot( KEYS[i] ) ] = sequence;
+        }
+    }
+
+    /**
+    * Returns the bytes the specified key sends in the specified
+    * mode, or null if it sends nothing.
+    */
+    public byte[] get( int keyCode, int gameAction, int mode )
+    {
+        for ( int i = 0; i < codeCount; i++ )
+        {
+            if ( codes[i] != keyCode ) continue;
+            if ( byCode[mode][i] != null ) return byCode[mode][i];
+            if ( byCode[NORMAL][i] != null ) return byCode[NORMAL][i];
+            break;
+        }
+        if ( gameAction <= 0 || gameAction >= byAction[mode].length ) return null;
+        if ( byAction[mode][gameAction] != null ) return byAction[mode][gameAction];
+        return byAction[NORMAL][gameAction];
+    }
+
+    /**
+    * Returns the index of the specified key code, adding it.
+    */
+    private int slot( int keyCode )
+    {
+        for ( int i = 0; i < codeCount; i++ )
+        {
+            if ( codes[i] == keyCode ) return i;
+        }
+        codes[ codeCount ] = keyCode;
+        return codeCount++;
+    }
+
+    /**
+    * Returns the bytes of the specified text with escapes,
+    * characters beyond ASCII encoded as UTF-8.
+    */
+    public static byte[] unescape( String text )
+    {
+        byte[] b = new byte[ text.length() * 3 ];
+        int n = 0, c, high, low;
+        boolean raw; // a byte given as \\xHH, not a character
+        for ( int i = 0; i < text.length(); i++ )
+        {
+            c = text.charAt( i );
+            raw = false;
+            if ( c == '\\' && i + 1 < text.length() )
+            {
+                c = text.charAt( ++i );
+                switch ( c )
+                {
+                    case 'e': c = 27; break;
+                    case 'r': c = '\r'; break;
+                    case 'n': c = '\n'; break;
+                    case 't': c = '\t'; break;
+                    case 'b': c = 8; break;
+                    case 'x':
+                        high = ( i + 2 < text.length() ) ? Character.digit( text.charAt( i + 1 ), 16 ) : -1;
+                        low = ( i + 2 < text.length() ) ? Character.digit( text.charAt( i + 2 ), 16 ) : -1;
+                        if ( high >= 0 && low >= 0 )
+                        {
+                            c = high << 4 | low;
+                            i += 2;
+                            raw = true;
+                        }
+                        else
+                        {
+                            b[ n++ ] = '\\'; // not an escape: sent as written
+                        }
+                        break;
+                }
+            }
+            else if ( c == '^' && i + 1 < text.length() )
+            {
+                c = text.charAt( ++i );
+                if ( c != '^' ) c = ( c == '?' ) ? 0x7f : c & 0x1f;
+            }
+
+            if ( c < 0x80 || raw )
+            {
+                b[ n++ ] = (byte) c;
+            }
+            else if ( c < 0x800 )
+            {
+                b[ n++ ] = (byte) ( 0xc0 | ( c >> 6 ) );
+                b[ n++ ] = (byte) ( 0x80 | ( c & 0x3f ) );
+            }
+            else
+            {
+                b[ n++ ] = (byte) ( 0xe0 | ( c >> 12 ) );
+                b[ n++ ] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+                b[ n++ ] = (byte) ( 0x80 | ( c & 0x3f ) );
+            }
+        }
+        byte[] result = new byte[ n ];
+        System.arraycopy( b, 0, result, 0, n );
+        return result;
+    }
+}
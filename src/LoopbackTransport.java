@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+* Transport that hands everything written straight back to
+* the reader, through a fixed buffer, for trying the terminal
+* and measuring it without a host.
+*/
+public class LoopbackTransport extends Transport
+{
+    private static final int SIZE = 4096;
+
+    private byte[] buffer = new byte[ SIZE ]; // circular
+    private int head; // index of the oldest unread byte
+    private int count; // number of unread bytes
+    private boolean closed;
+
+    public LoopbackTransport()
+    {
+        input = new Input();
+        output = new Output();
+    }
+
+    public synchronized void close()
+    {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+    * Waits until the condition is met or the loop closed.
+    */
+    private void await( boolean writing ) throws IOException
+    {
+        while ( ( writing ? count == SIZE : count == 0 ) && !closed )
+        {
+            try
+            {
+                wait();
+            }
+            catch ( InterruptedException exc )
+            {
+                throw new IOException( "Interrupted" );
+            }
+        }
+    }
+
+    private class Input extends InputStream
+    {
+        public int read() throws IOException
+        {
+            synchronized ( LoopbackTransport.this )
+            {
+                await( false );
+                if ( count == 0 ) return -1; // closed
+                int b = buffer[head] & 0xff;
+                head = ( head + 1 ) % SIZE;
+                count--;
+                LoopbackTransport.this.notifyAll();
+                return b;
+            }
+        }
+
+        public int read( byte[] b, int off, int len ) throws IOException
+        {
+            if ( len == 0 ) return 0;
+            synchronized ( LoopbackTransport.this )
+            {
+                await( false );
+                if ( count == 0 ) return -1; // closed
+                int n = Math.min( len, count );
+                n = Math.min( n, SIZE - head ); // up to the wrap
+                System.arraycopy( buffer, head, b, off, n );
+                head = ( head + n ) % SIZE;
+                count -= n;
+                LoopbackTransport.this.notifyAll();
+                return n;
+            }
+        }
+
+        public int available()
+        {
+            synchronized ( LoopbackTransport.this )
+            {
+                return count;
+            }
+        }
+
+        public void close()
+        {
+            LoopbackTransport.this.close();
+        }
+    }
+
+    private class Output extends OutputStream
+    {
+        public void write( int b ) throws IOException
+        {
+            synchronized ( LoopbackTransport.this )
+            {
+                await( true );
+                if ( closed ) throw new IOException( "Loopback closed" );
+                buffer[ ( head + count ) % SIZE ] = (byte) b;
+                count++;
+                LoopbackTransport.this.notifyAll();
+            }
+        }
+
+        public void write( byte[] b, int off, int len ) throws IOException
+        {
+            int n, tail;
+            while ( len > 0 )
+            {
+                synchronized ( LoopbackTransport.this )
+                {
+                    await( true );
+                    if ( closed ) throw new IOException( "Loopback closed" );
+                    tail = ( head + count ) % SIZE;
+                    n = Math.min( len, SIZE - count );
+                    n = Math.min( n, SIZE - tail ); // up to the wrap
+                    System.arraycopy( b, off, buffer, tail, n );
+                    count += n;
+                    LoopbackTransport.this.notifyAll();
+                }
+                off += n;
+                len -= n;
+            }
+        }
+
+        public void close()
+        {
+            LoopbackTransport.this.close();
+        }
+    }
+}
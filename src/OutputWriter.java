@@ -0,0 +1,252 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+* Buffers bytes bound for the connection and writes them from
+* its own thread, so that keystrokes never block on the link and
+* bytes queued close together go out as one write.
+*
+* Pending bytes are held for at most the maximum latency before
+* being written; bytes queued meanwhile join the same write, as
+* do bytes queued while a previous write is still in progress.
+* Interrupt and similar control bytes are written immediately,
+* along with anything queued before them.  When the buffer is
+* full, callers wait for the writer to catch up.
+*/
+public class OutputWriter implements Runnable
+{
+    public static final int DEFAULT_BUFFER = 256;
+    public static final int DEFAULT_MAX_LATENCY = 20; // milliseconds
+    public static final int CLOSE_TIMEOUT = 2000; // milliseconds
+
+    private OutputStream output;
+    private byte[] buffer; // circular
+    private int head; // index of the oldest pending byte
+    private int count; // number of pending bytes
+    private boolean urgent;
+    private boolean closed;
+    private boolean running; // the writer thread has yet to stop
+    private IOException error;
+    private int maxLatency = DEFAULT_MAX_LATENCY;
+    private int writes;
+    private int bytes;
+
+    /**
+    * Creates a writer for the specified stream, holding
+    * at most the specified number of pending bytes.
+    */
+    public OutputWriter( OutputStream stream, int size )
+    {
+        output = stream;
+        buffer = new byte[ Math.max( 16, size ) ];
+    }
+
+    /**
+    * Sets how long, in milliseconds, bytes may be held
+    * back to be coalesced with later ones.
+    */
+    public void setMaxLatency( int ms )
+    {
+        maxLatency = Math.max( 0, ms );
+    }
+
+    /**
+    * Returns the number of writes made to the stream,
+    * each followed by a flush.
+    */
+    public int getWrites()
+    {
+        return writes;
+    }
+
+    /**
+    * Returns the number of bytes written to the stream.
+    */
+    public int getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+    * Starts the writer thread.
+    */
+    public synchronized void start()
+    {
+        running = true;
+        new Thread( this ).start();
+    }
+
+    /**
+    * Writes out anything pending and stops the writer thread,
+    * waiting up to CLOSE_TIMEOUT for it to finish so that the
+    * stream can then be closed.
+    */
+    public synchronized void close()
+    {
+        closed = true;
+        notifyAll();
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+        long remaining = CLOSE_TIMEOUT;
+        while ( running && remaining > 0 )
+        {
+            try
+            {
+                wait( remaining );
+            }
+            catch ( InterruptedException exc )
+            {
+                break;
+            }
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    /**
+    * Queues the specified byte.
+    */
+    public void write( byte b ) throws IOException
+    {
+        synchronized ( this )
+        {
+            waitForSpace();
+            buffer[ ( head + count ) % buffer.length ] = b;
+            count++;
+            if ( isUrgent( b ) ) urgent = true;
+            notifyAll();
+        }
+    }
+
+    /**
+    * Queues the specified bytes.
+    */
+    public void write( byte[] b ) throws IOException
+    {
+        write( b, 0, b.length );
+    }
+
+    /**
+    * Queues the specified range of bytes, waiting for
+    * room as needed.
+    */
+    public void write( byte[] b, int off, int len ) throws IOException
+    {
+        int n, tail;
+        while ( len > 0 )
+        {
+            synchronized ( this )
+            {
+                waitForSpace();
+                tail = ( head + count ) % buffer.length;
+                n = Math.min( len, buffer.length - count );
+                n = Math.min( n, buffer.length - tail ); // up to the wrap
+                System.arraycopy( b, off, buffer, tail, n );
+                count += n;
+                for ( int i = off; i < off + n; i++ )
+                {
+                    if ( isUrgent( b[i] ) ) urgent = true;
+                }
+                notifyAll();
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+    * Waits until at least one byte is free, rethrowing
+    * the writer's failure if it has stopped.
+    */
+    private void waitForSpace() throws IOException
+    {
+        while ( count == buffer.length && !closed )
+        {
+            try
+            {
+                wait();
+            }
+            catch ( InterruptedException exc )
+            {
+                throw new IOException( "Interrupted" );
+            }
+        }
+        if ( error != null ) throw error;
+        if ( closed ) throw new IOException( "Writer closed" );
+    }
+
+    /**
+    * Returns whether the specified byte should be sent
+    * without delay: interrupt, end of file, suspend and quit,
+    * and the flow control XON and XOFF.
+    */
+    private static boolean isUrgent( byte b )
+    {
+        return b == 0x03 || b == 0x04 || b == 0x1a || b == 0x1c
+            || b == InputQueue.XON || b == InputQueue.XOFF;
+    }
+
+    /**
+    * Writes out pending bytes until closed or the stream fails.
+    */
+    public void run()
+    {
+        byte[] chunk = new byte[ buffer.length ];
+        int n;
+        while ( true )
+        {
+            synchronized ( this )
+            {
+                try
+                {
+                    while ( count == 0 && !closed ) wait();
+
+                    // hold the bytes back briefly to pick up any that follow
+                    long deadline = System.currentTimeMillis() + maxLatency;
+                    long remaining = maxLatency;
+                    while ( !urgent && !closed && count < buffer.length && remaining > 0 )
+                    {
+                        wait( remaining );
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                }
+                catch ( InterruptedException exc )
+                {
+                    // write out whatever is pending
+                }
+                if ( count == 0 ) break; // closed
+
+                n = count;
+                int first = Math.min( n, buffer.length - head ); // up to the wrap
+                System.arraycopy( buffer, head, chunk, 0, first );
+                System.arraycopy( buffer, 0, chunk, first, n - first );
+                head = ( head + n ) % buffer.length;
+                count = 0;
+                urgent = false;
+                notifyAll();
+            }
+
+            try
+            {
+                output.write( chunk, 0, n );
+                output.flush();
+                writes++;
+                bytes += n;
+            }
+            catch ( IOException exc )
+            {
+                synchronized ( this )
+                {
+                    error = exc;
+                    closed = true;
+                    running = false;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+        synchronized ( this )
+        {
+            running = false;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.microedition.rms.InvalidRecordIDException;
+import javax.microedition.rms.RecordStore;
+import javax.microedition.rms.RecordStoreException;
+
+/**
+* Transport that plays back a recorded stream, from a resource
+* in the jar or, named rms:name, from a record store written by
+* SessionRecorder.  Anything written is thrown away.
+*
+* Record stores and resources ending in .ttyrec are ttyrec
+* recordings, played as fast as they are read, or at the pace
+* they were recorded with ;realtime after the name.  Anything
+* else is raw output, played as fast as it is read.
+*/
+public class ReplayTransport extends Transport
+{
+    public ReplayTransport( String name ) throws IOException
+    {
+        boolean realTime = name.endsWith( ";realtime" );
+        if ( realTime ) name = name.substring( 0, name.length() - 9 );
+        if ( name.startsWith( "rms:" ) )
+        {
+            input = new RecordInput( name.substring( 4 ) );
+        }
+        else
+        {
+            input = getClass().getResourceAsStream( name );
+            if ( input == null ) throw new IOException( "No recording " + name );
+        }
+        if ( name.startsWith( "rms:" ) || name.endsWith( ".ttyrec" ) )
+        {
+            input = new TtyrecInputStream( input, realTime );
+        }
+        output = new Sink();
+        setReadChunk( 4096 );
+    }
+
+    public void close() throws IOException
+    {
+        input.close();
+    }
+
+    private static class Sink extends OutputStream
+    {
+        public void write( int b )
+        {
+        }
+
+        public void write( byte[] b, int off, int len )
+        {
+        }
+    }
+
+    /**
+    * Reads the records of a record store one after the other,
+    * in the order they were added.
+    */
+    private static class RecordInput extends InputStream
+    {
+        private RecordStore store;
+        private int next = 1; // id of the next record
+        private byte[] record = new byte[ 0 ];
+        private int pos;
+
+        RecordInput( String name ) throws IOException
+        {
+            try
+            {
+                store = RecordStore.openRecordStore( name, false );
+            }
+            catch ( RecordStoreException exc )
+            {
+                throw new IOException( "No recording " + name );
+            }
+        }
+
+        public int read() throws IOException
+        {
+            if ( !fill() ) return -1;
+            return record[ pos++ ] & 0xff;
+        }
+
+        public int read( byte[] b, int off, int len ) throws IOException
+        {
+            if ( len == 0 ) return 0;
+            if ( !fill() ) return -1;
+            int n = Math.min( len, record.length - pos );
+            System.arraycopy( record, pos, b, off, n );
+            pos += n;
+            return n;
+        }
+
+        public int available()
+        {
+            return record.length - pos;
+        }
+
+        public void close() throws IOException
+        {
+            try
+            {
+                store.closeRecordStore();
+            }
+            catch ( RecordStoreException exc )
+            {
+                throw new IOException( exc.toString() );
+            }
+        }
+
+        /**
+        * Moves on to the next record holding anything once the
+        * current one is read.  Returns false after the last.
+        */
+        private boolean fill() throws IOException
+        {
+            try
+            {
+                while ( pos == record.length )
+                {
+                    if ( next >= store.getNextRecordID() ) return false;
+                    try
+                    {
+                        record = store.getRecord( next );
+                    }
+                    catch ( InvalidRecordIDException exc )
+                    {
+                        record = null; // deleted
+                    }
+                    if ( record == null ) record = new byte[ 0 ];
+                    next++;
+                    pos = 0;
+                }
+            }
+            catch ( RecordStoreException exc )
+            {
+                throw new IOException( exc.toString() );
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,543 @@
+import javax.microedition.rms.RecordStore;
+import javax.microedition.rms.RecordStoreException;
+import javax.microedition.rms.RecordStoreFullException;
+
+/**
+* Second tier of the scrollback, holding the lines recycled from
+* the canvas' ring.  Lines are packed into blocks of BLOCK_LINES,
+* each block compressed once full and written to a record store
+* from a thread of its own, so that history can run to megabytes
+* while the heap only holds the block being filled, the few
+* waiting to be written, and a few decoded ones.
+*
+* Lines are numbered from the start of output, as the canvas
+* numbers them.  Reading a line decodes its whole block, which
+* is kept in a small LRU cache since lines are read a screen at
+* a time.  Once the store holds more than its budget, or is full,
+* the oldest blocks are deleted.
+*
+* Adding a line never waits on the record store.  If the writing
+* thread has fallen MAX_PENDING blocks behind, or a block cannot
+* be written, that block is dropped, leaving a gap in the history
+* that reads as blank lines.
+*
+* A line is packed as a flags byte (ATTRS, HIGHS), the number
+* of cells up to the last one not empty and of the default
+* attribute, their low bytes, their high bytes if any, then
+* their attributes as runs of a count and a value.  A block is
+* its packed length followed by the packed lines, compressed
+* as LZ77 sequences in the manner of LZ4: a token of literal
+* and match lengths, each 15 meaning more follow in bytes up to
+* 255, the literals, then the match offset, little endian.
+*/
+public class ScrollbackArchive implements Runnable
+{
+    public static final int DEFAULT_BUDGET = 1024; // kilobytes
+    public static final int ATTRS = 1;
+    public static final int HIGHS = 2;
+    private static final String STORE = "scrollback";
+    private static final int BLOCK_LINES = 64;
+    private static final int MAX_PENDING = 16; // blocks waiting to be written
+    private static final int CACHE = 4; // decoded blocks
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 12;
+
+    private RecordStore store;
+    private int columns;
+    private int budget; // bytes
+    private int base; // line number of block 0's first line
+    private int blocks; // blocks completed so far
+
+    // blocks held in the store, from the oldest, with -1 for
+    // the records of blocks dropped
+    private int first;
+    private int[] records = new int[ 64 ];
+    private int[] sizes = new int[ 64 ];
+    private int recordCount;
+    private int stored; // bytes
+
+    // compressed blocks waiting to be written, from the oldest,
+    // null for blocks dropped
+    private byte[][] pending = new byte[ MAX_PENDING ][];
+    private int pendingCount;
+    private int waiting; // of them not null
+
+    // the block being filled
+    private byte[] packed = new byte[ 4096 ];
+    private int packedLength;
+    private int[] packedOffsets = new int[ BLOCK_LINES ];
+    private int packedLines;
+
+    private int[] cachedBlocks = new int[ CACHE ];
+    private byte[][] cachedData = new byte[ CACHE ][];
+    private int[][] cachedOffsets = new int[ CACHE ][ BLOCK_LINES ];
+    private int[] cacheUsed = new int[ CACHE ];
+    private int uses;
+
+    private int[] hashes = new int[ 1 << HASH_BITS ];
+    private byte[] work = new byte[ 0 ]; // compression output
+    private int cursor; // into a packed block being read
+
+    /**
+    * Creates an archive of lines the specified number of cells
+    * wide, the first of which will be the specified line,
+    * keeping at most the specified number of kilobytes.  Any
+    * history left from an earlier run is deleted.
+    */
+    public ScrollbackArchive( int columns, int firstLine, int kilobytes ) throws RecordStoreException
+    {
+        this.columns = columns;
+        base = firstLine;
+        budget = kilobytes * 1024;
+        for ( int i = 0; i < CACHE; i++ ) cachedBlocks[i] = -1;
+        try
+        {
+            RecordStore.deleteRecordStore( STORE );
+        }
+        catch ( RecordStoreException exc )
+        {
+            // there was none
+        }
+        store = RecordStore.openRecordStore( STORE, true );
+    }
+
+    /**
+    * Starts the writing thread.
+    */
+    public void start()
+    {
+        new Thread( this ).start();
+    }
+
+    /**
+    * Returns the number of the oldest line held.
+    */
+    public synchronized int getFirst()
+    {
+        return base + first * BLOCK_LINES;
+    }
+
+    /**
+    * Returns the number of lines held.
+    */
+    public synchronized int getLines()
+    {
+        return ( blocks - first ) * BLOCK_LINES + packedLines;
+    }
+
+    /**
+    * Returns the number of bytes held in the record store.
+    */
+    public synchronized int getStored()
+    {
+        return stored;
+    }
+
+    /**
+    * Adds the next line, given as its low bytes, attributes
+    * and high bytes, any of which may be null if the line has
+    * none.  Drops the block it completes if the writing thread
+    * has too many waiting.
+    */
+    public synchronized void add( byte[] l, short[] a, byte[] h )
+    {
+        int end = columns;
+        while ( end > 0 && ( l == null || l[end-1] == 0 )
+            && ( a == null || a[end-1] == 0 ) && ( h == null || h[end-1] == 0 ) ) end--;
+
+        if ( packedLength + 8 + end * 8 > packed.length )
+        {
+            byte[] larger = new byte[ Math.max( packed.length * 2, packedLength + 8 + end * 8 ) ];
+            System.arraycopy( packed, 0, larger, 0, packedLength );
+            packed = larger;
+        }
+        packedOffsets[ packedLines++ ] = packedLength;
+
+        int flags = 0, i;
+        if ( a != null )
+        {
+            for ( i = 0; i < end && a[i] == 0; i++ );
+            if ( i < end ) flags |= ATTRS;
+        }
+        if ( h != null )
+        {
+            for ( i = 0; i < end && h[i] == 0; i++ );
+            if ( i < end ) flags |= HIGHS;
+        }
+        packed[ packedLength++ ] = (byte) flags;
+        packedLength = putNumber( packed, packedLength, end );
+        if ( l != null ) System.arraycopy( l, 0, packed, packedLength, end );
+        else for ( i = 0; i < end; i++ ) packed[ packedLength + i ] = 0;
+        packedLength += end;
+        if ( ( flags & HIGHS ) != 0 )
+        {
+            System.arraycopy( h, 0, packed, packedLength, end );
+            packedLength += end;
+        }
+        if ( ( flags & ATTRS ) != 0 )
+        {
+            int start;
+            for ( i = 0; i < end; )
+            {
+                start = i;
+                while ( i < end && a[i] == a[start] ) i++;
+                packedLength = putNumber( packed, packedLength, i - start );
+                packed[ packedLength++ ] = (byte) ( a[start] >> 8 );
+                packed[ packedLength++ ] = (byte) a[start];
+            }
+        }
+
+        if ( packedLines == BLOCK_LINES )
+        {
+            if ( pendingCount == pending.length )
+            {
+                byte[][] larger = new byte[ pendingCount * 2 ][];
+                System.arraycopy( pending, 0, larger, 0, pendingCount );
+                pending = larger;
+            }
+            if ( waiting < MAX_PENDING )
+            {
+                pending[ pendingCount++ ] = compress( packed, packedLength );
+                waiting++;
+            }
+            else
+            {
+                pending[ pendingCount++ ] = null; // no waiting on the store
+            }
+            blocks++;
+            packedLength = 0;
+            packedLines = 0;
+            notifyAll();
+        }
+    }
+
+    /**
+    * Fills in the specified line's low bytes, attributes and
+    * high bytes, each array a line long, and returns which of
+    * ATTRS and HIGHS it has; l is filled in either way, a and
+    * h only if it has them.  Returns -1 if the line is not held.
+    */
+    public synchronized int getLine( int line, byte[] l, short[] a, byte[] h )
+    {
+        if ( line < getFirst() || line >= base + blocks * BLOCK_LINES + packedLines ) return -1;
+        int block = ( line - base ) / BLOCK_LINES;
+        int i = ( line - base ) % BLOCK_LINES;
+        if ( block == blocks ) return unpack( packed, packedOffsets[i], l, a, h );
+
+        int slot = 0;
+        for ( int j = 0; j < CACHE; j++ )
+        {
+            if ( cachedBlocks[j] == block )
+            {
+                slot = j;
+                break;
+            }
+            if ( cacheUsed[j] < cacheUsed[slot] ) slot = j; // least recently
+        }
+        if ( cachedBlocks[slot] != block )
+        {
+            byte[] compressed;
+            try
+            {
+                if ( block < first + recordCount )
+                {
+                    if ( records[ block - first ] < 0 ) return -1; // dropped
+                    compressed = store.getRecord( records[ block - first ] );
+                }
+                else
+                {
+                    compressed = pending[ block - first - recordCount ];
+                    if ( compressed == null ) return -1;
+                }
+            }
+            catch ( RecordStoreException exc )
+            {
+                return -1; // deleted meanwhile
+            }
+            cachedData[slot] = decompress( compressed, cachedData[slot] );
+            cachedBlocks[slot] = block;
+
+            // find where each line starts
+            int[] offsets = cachedOffsets[slot];
+            byte[] data = cachedData[slot];
+            cursor = 0;
+            for ( int j = 0; j < BLOCK_LINES; j++ )
+            {
+                offsets[j] = cursor;
+                int flags = data[ cursor++ ];
+                int end = getNumber( data );
+                cursor += end;
+                if ( ( flags & HIGHS ) != 0 ) cursor += end;
+                for ( int x = 0; ( flags & ATTRS ) != 0 && x < end; cursor += 2 ) x += getNumber( data );
+            }
+        }
+        cacheUsed[slot] = ++uses;
+        return unpack( cachedData[slot], cachedOffsets[slot][i], l, a, h );
+    }
+
+    /**
+    * Writes out blocks as they are completed, then deletes the
+    * oldest while over budget.  The store is only used with the
+    * lock released, so that adding lines never waits on it.
+    */
+    public void run()
+    {
+        byte[] block;
+        int id;
+        while ( true )
+        {
+            synchronized ( this )
+            {
+                while ( pendingCount == 0 ) await();
+                block = pending[0];
+            }
+            id = ( block != null ) ? write( block ) : -1;
+            synchronized ( this )
+            {
+                if ( recordCount == records.length )
+                {
+                    records = grow( records );
+                    sizes = grow( sizes );
+                }
+                // a block that could not be written is dropped alone
+                records[ recordCount ] = id;
+                sizes[ recordCount ] = ( id >= 0 ) ? block.length : 0;
+                stored += sizes[ recordCount++ ];
+                System.arraycopy( pending, 1, pending, 0, --pendingCount );
+                pending[ pendingCount ] = null;
+                if ( block != null ) waiting--;
+            }
+            while ( isOverBudget() ) dropOldest();
+        }
+    }
+
+    private synchronized boolean isOverBudget()
+    {
+        return stored > budget && recordCount > 1;
+    }
+
+    /**
+    * Adds the specified block to the store, deleting the oldest
+    * ones while the store is full.  Returns the new record's id,
+    * or -1 if it could not be added.
+    */
+    private int write( byte[] block )
+    {
+        while ( true )
+        {
+            try
+            {
+                return store.addRecord( block, 0, block.length );
+            }
+            catch ( RecordStoreFullException exc )
+            {
+                if ( !dropOldest() ) return -1;
+            }
+            catch ( RecordStoreException exc )
+            {
+                return -1;
+            }
+        }
+    }
+
+    /**
+    * Deletes the oldest block from the store, returning
+    * false if there are none.
+    */
+    private boolean dropOldest()
+    {
+        int id;
+        synchronized ( this )
+        {
+            if ( recordCount == 0 ) return false;
+            id = records[0];
+            stored -= sizes[0];
+            recordCount--;
+            System.arraycopy( records, 1, records, 0, recordCount );
+            System.arraycopy( sizes, 1, sizes, 0, recordCount );
+            first++;
+        }
+        try
+        {
+            if ( id >= 0 ) store.deleteRecord( id );
+        }
+        catch ( RecordStoreException exc )
+        {
+            // its lines are dropped all the same
+        }
+        return true;
+    }
+
+    /**
+    * Unpacks the line at the specified offset of a packed
+    * block into l, and a and h if it has them.
+    */
+    private int unpack( byte[] data, int offset, byte[] l, short[] a, byte[] h )
+    {
+        cursor = offset;
+        int flags = data[ cursor++ ];
+        int end = getNumber( data );
+        System.arraycopy( data, cursor, l, 0, end );
+        cursor += end;
+        for ( int x = end; x < columns; x++ ) l[x] = 0;
+        if ( ( flags & HIGHS ) != 0 )
+        {
+            System.arraycopy( data, cursor, h, 0, end );
+            cursor += end;
+            for ( int x = end; x < columns; x++ ) h[x] = 0;
+        }
+        if ( ( flags & ATTRS ) != 0 )
+        {
+            int x = 0, n;
+            short value;
+            while ( x < end )
+            {
+                n = getNumber( data );
+                value = (short) ( ( data[cursor] << 8 ) | ( data[ cursor + 1 ] & 0xff ) );
+                cursor += 2;
+                while ( n-- > 0 ) a[ x++ ] = value;
+            }
+            while ( x < columns ) a[ x++ ] = 0;
+        }
+        return flags;
+    }
+
+    /**
+    * Returns the first length bytes of src compressed, after
+    * the length itself.
+    */
+    private byte[] compress( byte[] src, int length )
+    {
+        int size = 4 + length + length / 255 + 16;
+        if ( work.length < size ) work = new byte[ size ];
+        byte[] out = work;
+        int[] table = hashes;
+        for ( int i = 0; i < table.length; i++ ) table[i] = -1;
+
+        out[0] = (byte) ( length >> 24 );
+        out[1] = (byte) ( length >> 16 );
+        out[2] = (byte) ( length >> 8 );
+        out[3] = (byte) length;
+        int op = 4, ip = 0, anchor = 0, ref, n, hash;
+        while ( ip + MIN_MATCH <= length )
+        {
+            hash = ( ( ( src[ip] & 0xff ) | ( src[ ip + 1 ] & 0xff ) << 8
+                | ( src[ ip + 2 ] & 0xff ) << 16 | src[ ip + 3 ] << 24 ) * 0x9e3779b1 ) >>> ( 32 - HASH_BITS );
+            ref = table[hash];
+            table[hash] = ip;
+            if ( ref < 0 || ip - ref > 0xffff || src[ref] != src[ip] || src[ ref + 1 ] != src[ ip + 1 ]
+                || src[ ref + 2 ] != src[ ip + 2 ] || src[ ref + 3 ] != src[ ip + 3 ] )
+            {
+                ip++;
+                continue;
+            }
+            for ( n = MIN_MATCH; ip + n < length && src[ ref + n ] == src[ ip + n ]; n++ );
+            op = putSequence( out, op, src, anchor, ip - anchor, n - MIN_MATCH );
+            out[ op++ ] = (byte) ( ip - ref );
+            out[ op++ ] = (byte) ( ( ip - ref ) >> 8 );
+            op = putLength( out, op, n - MIN_MATCH );
+            ip += n;
+            anchor = ip;
+        }
+        op = putSequence( out, op, src, anchor, length - anchor, 0 );
+
+        byte[] result = new byte[ op ];
+        System.arraycopy( out, 0, result, 0, op );
+        return result;
+    }
+
+    /**
+    * Writes a token, the literal length past it, and the
+    * literals, returning the offset after them.
+    */
+    private static int putSequence( byte[] out, int op, byte[] src, int from, int literals, int match )
+    {
+        out[ op++ ] = (byte) ( Math.min( literals, 15 ) << 4 | Math.min( match, 15 ) );
+        op = putLength( out, op, literals );
+        System.arraycopy( src, from, out, op, literals );
+        return op + literals;
+    }
+
+    /**
+    * Writes the part of a length that does not fit its token.
+    */
+    private static int putLength( byte[] out, int op, int n )
+    {
+        if ( n < 15 ) return op;
+        for ( n -= 15; n >= 255; n -= 255 ) out[ op++ ] = (byte) 255;
+        out[ op++ ] = (byte) n;
+        return op;
+    }
+
+    /**
+    * Decompresses a block into the specified array if it is
+    * long enough, or a new one, which is returned.
+    */
+    private static byte[] decompress( byte[] in, byte[] out )
+    {
+        int length = ( in[0] & 0xff ) << 24 | ( in[1] & 0xff ) << 16 | ( in[2] & 0xff ) << 8 | ( in[3] & 0xff );
+        if ( out == null || out.length < length ) out = new byte[ length ];
+        int ip = 4, op = 0, token, n, ref;
+        while ( ip < in.length )
+        {
+            token = in[ ip++ ] & 0xff;
+            n = token >>> 4;
+            if ( n == 15 ) do n += in[ip] & 0xff; while ( ( in[ ip++ ] & 0xff ) == 255 );
+            System.arraycopy( in, ip, out, op, n );
+            ip += n;
+            op += n;
+            if ( ip >= in.length ) break; // the last sequence has no match
+
+            ref = op - ( ( in[ip] & 0xff ) | ( in[ ip + 1 ] & 0xff ) << 8 );
+            ip += 2;
+            n = token & 15;
+            if ( n == 15 ) do n += in[ip] & 0xff; while ( ( in[ ip++ ] & 0xff ) == 255 );
+            n += MIN_MATCH;
+            while ( n-- > 0 ) out[ op++ ] = out[ ref++ ]; // may overlap
+        }
+        return out;
+    }
+
+    /**
+    * Writes a number below 32768 in one byte if below 128,
+    * else two with the top bit set.
+    */
+    private static int putNumber( byte[] out, int op, int n )
+    {
+        if ( n >= 128 ) out[ op++ ] = (byte) ( 0x80 | n >> 8 );
+        out[ op++ ] = (byte) n;
+        return op;
+    }
+
+    /**
+    * Reads a number written by putNumber() at the cursor.
+    */
+    private int getNumber( byte[] data )
+    {
+        int n = data[ cursor++ ] & 0xff;
+        if ( n >= 128 ) n = ( n & 0x7f ) << 8 | ( data[ cursor++ ] & 0xff );
+        return n;
+    }
+
+    private static int[] grow( int[] a )
+    {
+        int[] larger = new int[ a.length * 2 ];
+        System.arraycopy( a, 0, larger, 0, a.length );
+        return larger;
+    }
+
+    /**
+    * Waits to be woken, with the lock held.
+    */
+    private void await()
+    {
+        try
+        {
+            wait();
+        }
+        catch ( InterruptedException exc )
+        {
+            // the caller checks again
+        }
+    }
+}
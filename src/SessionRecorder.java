@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.microedition.io.Connection;
+import javax.microedition.io.Connector;
+import javax.microedition.io.OutputConnection;
+import javax.microedition.rms.RecordStore;
+import javax.microedition.rms.RecordStoreException;
+
+/**
+* Records the output received by the canvas as ttyrec (see
+* TtyrecInputStream), each batch received as one frame stamped
+* with the time it arrived, so that a session can be played back
+* by ttyplay, or by replay: at its own pace or as fast as the
+* canvas takes it.
+*
+* The URL is rms:name for a record store of that name on the
+* phone, replayed by replay:rms:name, or anything the Connector
+* opens for writing, such as socket://host:port with the host
+* running nc -l port > session.ttyrec.  Frames are gathered in
+* a buffer, written out whenever it fills or a second after the
+* last write, with each write a record in a record store.
+*/
+public class SessionRecorder
+{
+    private static final int BUFFER = 4096;
+    private static final int MAX_LATENCY = 1000; // milliseconds
+
+    private Connection connection;
+    private OutputStream output;
+    private RecordStore store;
+    private byte[] buffer = new byte[ BUFFER ];
+    private int count;
+    private long lastWrite;
+    private int frames;
+    private int bytes;
+
+    /**
+    * Starts a recording at the specified URL, replacing any
+    * recording already in the record store.
+    */
+    public SessionRecorder( String url ) throws IOException
+    {
+        if ( url.startsWith( "rms:" ) )
+        {
+            try
+            {
+                RecordStore.deleteRecordStore( url.substring( 4 ) );
+            }
+            catch ( RecordStoreException exc )
+            {
+                // there was none
+            }
+            try
+            {
+                store = RecordStore.openRecordStore( url.substring( 4 ), true );
+            }
+            catch ( RecordStoreException exc )
+            {
+                throw new IOException( exc.toString() );
+            }
+        }
+        else
+        {
+            connection = Connector.open( url, Connector.WRITE );
+            output = ( (OutputConnection) connection ).openOutputStream();
+        }
+        lastWrite = System.currentTimeMillis();
+    }
+
+    /**
+    * Returns the number of frames recorded.
+    */
+    public int getFrames()
+    {
+        return frames;
+    }
+
+    /**
+    * Returns the number of bytes of output recorded.
+    */
+    public int getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+    * Records the specified bytes as a frame received now.
+    */
+    public synchronized void record( byte[] b, int off, int len ) throws IOException
+    {
+        long now = System.currentTimeMillis();
+        if ( count + 12 > BUFFER ) flush();
+        putInt( (int) ( now / 1000 ) );
+        putInt( (int) ( now % 1000 ) * 1000 );
+        putInt( len );
+        frames++;
+        bytes += len;
+
+        int n;
+        while ( len > 0 )
+        {
+            if ( count == BUFFER ) flush();
+            n = Math.min( len, BUFFER - count );
+            System.arraycopy( b, off, buffer, count, n );
+            count += n;
+            off += n;
+            len -= n;
+        }
+        if ( now - lastWrite >= MAX_LATENCY ) flush();
+    }
+
+    /**
+    * Writes out what is recorded so far and ends the recording.
+    */
+    public synchronized void close() throws IOException
+    {
+        flush();
+        try
+        {
+            if ( store != null ) store.closeRecordStore();
+            if ( connection != null )
+            {
+                output.close();
+                connection.close();
+            }
+        }
+        catch ( RecordStoreException exc )
+        {
+            throw new IOException( exc.toString() );
+        }
+    }
+
+    /**
+    * Writes out the buffer.
+    */
+    private void flush() throws IOException
+    {
+        lastWrite = System.currentTimeMillis();
+        if ( count == 0 ) return;
+        try
+        {
+            if ( store != null )
+            {
+                store.addRecord( buffer, 0, count );
+            }
+            else
+            {
+                output.write( buffer, 0, count );
+                output.flush();
+            }
+        }
+        catch ( RecordStoreException exc )
+        {
+            throw new IOException( exc.toString() );
+        }
+        finally
+        {
+            count = 0;
+        }
+    }
+
+    private void putInt( int n )
+    {
+        buffer[ count++ ] = (byte) n;
+        buffer[ count++ ] = (byte) ( n >> 8 );
+        buffer[ count++ ] = (byte) ( n >> 16 );
+        buffer[ count++ ] = (byte) ( n >> 24 );
+    }
+}
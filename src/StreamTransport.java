@@ -0,0 +1,33 @@
+import java.io.IOException;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.SocketConnection;
+import javax.microedition.io.StreamConnection;
+
+/**
+* Transport over a stream connection opened by the Connector:
+* btspp:// for Bluetooth serial, socket:// for TCP.
+*/
+public class StreamTransport extends Transport
+{
+    private StreamConnection connection;
+
+    public StreamTransport( String url ) throws IOException
+    {
+        connection = (StreamConnection) Connector.open( url );
+        if ( connection instanceof SocketConnection )
+        {
+            // writes are already coalesced by the OutputWriter
+            ( (SocketConnection) connection ).setSocketOption( SocketConnection.DELAY, 0 );
+            setReadChunk( 2048 );
+            setWriteBuffer( 1024 );
+        }
+        input = connection.openInputStream();
+        output = connection.openOutputStream();
+    }
+
+    public void close() throws IOException
+    {
+        connection.close();
+    }
+}
@@ -35,17 +35,20 @@
  */
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.microedition.lcdui.Canvas;
 import javax.microedition.lcdui.Display;
 import javax.microedition.lcdui.Displayable;
 import javax.microedition.lcdui.Graphics;
 import javax.microedition.lcdui.Font;
+import javax.microedition.lcdui.Image;
+import javax.microedition.rms.RecordStoreException;
 
 /**
 * Canvas that renders an ANSI character stream and 
-* sends any user input to the specified output stream.
+* sends any user input to the specified output writer.
 */ 
 public class TelnetCanvas extends Canvas
 {
@@ -58,29 +61,204 @@ public class TelnetCanvas extends Canvas
     private int scrollY;
     private short insetX;
     private short insetY;
-    private byte[] buffer;
-    private int cursor;
-    private int savedCursor;
-    private int bound; // outer bound: max extent of cursor
-    private OutputStream output;
+    
+    /**
+    * Scrollback is a ring of lines, allocated as they are first
+    * written.  Row 0 is the oldest line still held, at slot
+    * origin; once the ring is full, each new line reuses the
+    * oldest.  Rows and buffer indices (row * columns + column)
+    * are counted from there.  Lines are only referenced from
+    * the ring, so moving a line is moving its reference.
+    */
+    private byte[][] lines;
+    private char[] rowChars; // one row of cells, as passed to the font
+    
+    /**
+    * Attribute plane, one short per cell alongside lines: fg and
+    * bg color (0 for default, else palette index + 1) and style
+    * bits.  A line's attributes are only allocated once it holds
+    * a non-default one, so a cell costs three bytes at most and
+    * memory stays within capacity * columns * 3.
+    */
+    private short[][] attrs;
+    private short attr; // applied to characters as they are written
+    
+    /**
+    * High bytes of the characters above U+00FF, a plane alongside
+    * lines holding the low bytes.  The plane is only allocated
+    * with the first such character, and a line's high bytes once
+    * it holds one, so ASCII costs nothing more.
+    */
+    private byte[][] highs;
+    private static final int FG_MASK = 0x1f;
+    private static final int BG_SHIFT = 5;
+    private static final int BG_MASK = FG_MASK << BG_SHIFT;
+    private static final int BOLD = 0x400;
+    private static final int UNDERLINE = 0x800;
+    private static final int REVERSE = 0x1000;
+    
+    /**
+    * Colors 0-7 and their bright variants 8-15, as in xterm.
+    */
+    private static final int[] PALETTE = {
+        0x000000, 0xcd0000, 0x00cd00, 0xcdcd00, 
+        0x0000ee, 0xcd00cd, 0x00cdcd, 0xe5e5e5,
+        0x7f7f7f, 0xff0000, 0x00ff00, 0xffff00, 
+        0x5c5cff, 0xff00ff, 0x00ffff, 0xffffff };
+    private static final int DEFAULT_FG = 0xffffff;
+    private static final int DEFAULT_BG = 0x000000;
+    private CustomFont[] styledFonts; // indexed by Font style bits
+    private int origin;
+    private int capacity = DEFAULT_SCROLLBACK; // lines
+    public static final int DEFAULT_SCROLLBACK = 500;
+    
+    /**
+    * Lines recycled from the ring are kept in the archive, if
+    * there is one, and can still be scrolled back to: the rows
+    * above the ring are negative, and are read from the archive
+    * into the archived arrays to be drawn.
+    */
+    private ScrollbackArchive archive;
+    private int historyBudget; // kilobytes, 0 for none
+    private byte[] archivedLine;
+    private short[] archivedAttrs;
+    private byte[] archivedHighs;
+    private int cursorRow; // buffer row
+    private int cursorColumn;
+    private int savedRow; // screen row
+    private int savedColumn;
+    private int scrollTop; // screen rows bounding the scroll region, inclusive
+    private int scrollBottom;
+    private int lineCount; // lines in use, the last rows of which are the screen
+    private OutputWriter output;
+    private boolean sendFailed; // reported once: every later send fails too
+    private InputQueue queue; // for its statistics
+    private SessionRecorder recorder;
+    private byte[] recordedByte = new byte[1];
 
     Display midletDisplay; // Zane
     
     /**
-    * The first element in this array is the logical size,
-    * which is the index at which the next byte should be
-    * placed.  (Kind of like Pascal.)
-    * The array itself may be longer than the length used.  
+    * Repaints are funnelled through requestRepaint(), which
+    * folds requests made within one frame interval of the last
+    * repaint into a single one issued from the timer thread.
+    */
+    private Timer repaintTimer;
+    private int frameInterval; // minimum milliseconds between repaints
+    private long lastRepaint;
+    private boolean repaintPending;
+    private int paintsRequested;
+    private int paintsDone;
+    public static final int DEFAULT_MAX_FPS = 15;
+    
+    /**
+    * Statistics, shown over the screen when enabled and reported
+    * by getStats().  Times are in milliseconds, as that is all
+    * the clock offers; each counter is only written by one thread.
+    */
+    private int bytesReceived;
+    private int sequences; // escape sequences and control sequences
+    private int[] unsupportedCommands = new int[128]; // by final byte
+    private int[] unsupportedEscapes = new int[128];
+    private long parseTime;
+    private long paintTime;
+    private int maxPaintTime;
+    private long createdAt;
+    private int startTime = -1; // from creation to the end of the first frame
+    private boolean showStats;
+    private int statsTop = -1; // top of the overlay as last painted
+    
+    /**
+    * Predicted echo: printable keystrokes are drawn underlined
+    * at once, from the cursor on, until the host's echo writes
+    * the same characters there.  Any other character written
+    * there rolls them all back.  Lines are counted from the start
+    * of output, as for the view.  Other keys put predictions on
+    * hold until the host has caught up, and an echo that never
+    * comes, as when typing a password, stops them until the
+    * cursor leaves the line.
+    */
+    private boolean predicting;
+    private byte[] predicted; // characters, oldest first
+    private byte[] replaced; // what their cells held when predicted
+    private byte[] paintedPredictions; // as taken by paint()
+    private int predictionCount;
+    private int predictedLine;
+    private int predictedColumn; // of the oldest
+    private long predictedAt; // when the host last kept up
+    private boolean predictionHeld;
+    private int echolessLine = -1;
+    private int echoesConfirmed;
+    private int echoesMissed;
+    public static final int ECHO_TIMEOUT = 1000; // milliseconds
+    
+    /**
+    * Damaged columns of each screen row, as [from, to) spans,
+    * which are repainted instead of the whole screen.  Cursor
+    * and view changes are noticed by comparing with the values
+    * at the last repaint; the view is tracked by its first line
+    * counted from the start of output (discarded + scrollY), so
+    * that recycling scrollback lines does not move it.
     */
-    private char[] argbuf;
+    private short[] damageFrom;
+    private short[] damageTo;
+    private boolean damageAll;
+    private int damagedRow;
+    private int damagedColumn;
+    private int damagedTop;
+    private int discarded; // lines dropped from the scrollback so far
+    private int generation; // counts changes to what is on screen
+    private int renderedGeneration; // the change the back buffer shows
     
-    private byte state;
-    private boolean highlight;
+    /**
+    * Search index: a bitmap of the trigrams in each block of 
+    * INDEX_BLOCK lines, counted from the start of output, so that
+    * a search only reads the lines of blocks holding every trigram
+    * of the text.  Lines that have scrolled off the screen no
+    * longer change, and each search first indexes those it has
+    * not seen, leaving receiving untouched; the screen is 
+    * searched line by line.  The bitmaps share one array of INDEX_BUDGET
+    * ints at most, used as a ring of blocks, so the longer the
+    * scrollback the fewer bits each block gets, and the more 
+    * blocks are read for nothing.
+    */
+    private int[] index;
+    private int indexWords; // per block, a power of two
+    private int indexShift; // takes a hash down to a bit of a block
+    private int indexBlocks;
+    private int indexedLines; // lines from the start of output
+    private static final int INDEX_BLOCK = 8;
+    private static final int INDEX_BUDGET = 8192; // 32K, a quarter of it for 500 lines
+    private static final int INDEX_MAX_WORDS = 32;
+    private String matchText;
+    private int matchLine = -1; // from the start of output, or -1
+    private int matchColumn;
+    
+    /**
+    * The screen is rendered into a retained back buffer, which
+    * paint() then draws in one call.  Cells changed since they
+    * were last rendered are kept as dirty spans, like the damage
+    * spans but consumed by paint() instead.  When rows scroll,
+    * their pixels are moved in the back buffer with copyArea
+    * (queued as top, bottom, count triples) and only the rows
+    * exposed need rendering.
+    */
+    private Image backBuffer;
+    private Graphics back;
+    private short[] dirtyFrom;
+    private short[] dirtyTo;
+    private short[] renderFrom; // dirty spans taken by paint()
+    private short[] renderTo;
+    private boolean dirtyAll;
+    private int[] blits;
+    private int[] renderBlits;
+    private int blitCount;
+    private static final int MAX_BLITS = 8;
+    
+    private AnsiParser parser;
     private boolean scrolling;
-    private byte[] move = new byte[] { 27, '[', 0 };
-    private static final byte NORMAL_STATE = 0;
-    private static final byte ESCAPE_STATE = 1;
-    private static final byte PARAMS_STATE= 2;
+    private Keymap keymap = new Keymap();
+    private boolean applicationKeys; // cursor keys send ESC O, not ESC [
 
     /**
     * Default constructor creates a new telnet canvas.
@@ -88,8 +266,10 @@ public class TelnetCanvas extends Canvas
     */
     public TelnetCanvas(Display display)
     {
+	createdAt = System.currentTimeMillis();
 	setFullScreenMode(true); // Zane
 	midletDisplay = display; // Zane
+	setMaxFps( DEFAULT_MAX_FPS );
     }
 
     public void setup() {
@@ -113,14 +293,22 @@ public class TelnetCanvas extends Canvas
         insetX = (short) ( ( width - columns*fontWidth ) / 2 );
         insetY = (short) ( ( height - rows*fontHeight ) / 2 );
 
+        // retained copy of the screen
+        backBuffer = Image.createImage( width, height );
+        back = backBuffer.getGraphics();
+        blits = new int[ MAX_BLITS * 3 ];
+        renderBlits = new int[ MAX_BLITS * 3 ];
+        
         // initialize state
         reset();
         scrolling = false;
 
-        // ansi arg parsing state
-        argbuf = new char[2];
-        state = 0;
-        highlight = false;
+        // ansi parsing state
+        parser = new AnsiParser( this );
+        styledFonts = new CustomFont[ ( Font.STYLE_BOLD | Font.STYLE_ITALIC | Font.STYLE_UNDERLINED ) + 1 ];
+        styledFonts[0] = font;
+
+        repaintTimer = new Timer();
     }
     
     /**
@@ -152,704 +340,2018 @@ public class TelnetCanvas extends Canvas
     */ 
     public void reset()
     {
-        buffer = new byte[rows*columns*4]; // start with 4 screens of buffer
-        cursor = 0;
-        bound = rows * columns;
-        savedCursor = -1;
+        capacity = Math.max( capacity, rows + 1 );
+        lines = new byte[capacity][];
+        attrs = new short[capacity][];
+        highs = null;
+        attr = 0;
+        rowChars = new char[columns];
+        predicted = new byte[columns];
+        replaced = new byte[columns];
+        paintedPredictions = new byte[columns];
+        predictionCount = 0;
+        origin = 0;
+        cursorRow = 0;
+        cursorColumn = 0;
+        lineCount = rows;
+        if ( historyBudget > 0 && archive == null )
+        {
+            try
+            {
+                archive = new ScrollbackArchive( columns, discarded, historyBudget );
+                archive.start();
+                archivedLine = new byte[columns];
+                archivedAttrs = new short[columns];
+                archivedHighs = new byte[columns];
+            }
+            catch ( RecordStoreException exc )
+            {
+                historyBudget = 0; // the ring is all there is
+            }
+        }
+        indexBlocks = capacity / INDEX_BLOCK + 2; // partial blocks at both ends
+        indexWords = 1;
+        indexShift = 32 - 5;
+        while ( indexWords < INDEX_MAX_WORDS && indexWords * 2 * indexBlocks <= INDEX_BUDGET )
+        {
+            indexWords *= 2;
+            indexShift--;
+        }
+        index = new int[ indexBlocks * indexWords ];
+        indexedLines = discarded + lineCount - rows;
+        matchLine = -1;
+        applicationKeys = false;
+        savedRow = 0;
+        savedColumn = 0;
+        scrollTop = 0;
+        scrollBottom = rows - 1;
         scrollX = 0;
         scrollY = 0;
+        
+        damageFrom = new short[rows];
+        damageTo = new short[rows];
+        dirtyFrom = new short[rows];
+        dirtyTo = new short[rows];
+        renderFrom = new short[rows];
+        renderTo = new short[rows];
+        damagedRow = cursorRow;
+        damagedColumn = cursorColumn;
+        damagedTop = discarded + scrollY;
+        damageScreen();
     }
     
     /**
-    * Returns whether the terminal is in "scroll-lock" mode:
-    * arrow keys will scroll the local display instead of
-    * being sent to the remote host.
+    * Sets the maximum number of repaints per second.
+    * Zero or less removes the limit.
     */
-    public boolean isScrolling()
+    public void setMaxFps( int fps )
     {
-        return scrolling;
+        frameInterval = ( fps > 0 ) ? 1000 / fps : 0;
     }
     
     /**
-    * Sets whether the terminal is in "scroll-lock" mode:
-    * arrow keys will scroll the local display instead of
-    * being sent to the remote host.
+    * Returns the number of repaints requested so far,
+    * including those folded into a later repaint.
     */
-    public void setScrolling( boolean isScrolling )
+    public int getPaintsRequested()
     {
-        scrolling = isScrolling;
+        return paintsRequested;
     }
     
     /**
-    * Sets the output stream used to receive user input.
+    * Returns the number of times paint() has been called.
     */
-    public void setOutputStream( OutputStream stream )
+    public int getPaintsDone()
     {
-        output = stream;
+        return paintsDone;
     }
     
     /**
-    * Sends the specified byte to the output stream.
-    * If no output stream is set, does nothing.
+    * Shows or hides the statistics over the screen.
     */
-    public void send( byte b )
+    public void setShowStats( boolean show )
     {
-        if ( output == null ) return;
+        showStats = show;
+        repaint();
+    }
+    
+    public boolean isShowingStats()
+    {
+        return showStats;
+    }
+    
+    /**
+    * Returns the statistics as one line of space separated
+    * name=value fields, for instance:
+    * rx=51234 seq=870 unsupported=h:2,l:2 parse=95ms
+    * frames=66/1503 paint=412ms max=31ms tx=96 writes=12
+    * pauses=3 heap=123/512k.  Unsupported sequences are counted by
+    * their final character, escapes prefixed with ESC.
+    */
+    public String getStats()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append( "rx=" ).append( bytesReceived );
+        sb.append( " seq=" ).append( sequences );
         
-        try
-        {   
-            output.write( b );
-            output.flush();
-        } 
-        catch ( IOException exc )
+        char separator = '=';
+        for ( int i = 0; i < 256; i++ )
+        {
+            int n = ( i < 128 ) ? unsupportedCommands[i] : unsupportedEscapes[ i - 128 ];
+            if ( n == 0 ) continue;
+            if ( separator == '=' ) sb.append( " unsupported" );
+            sb.append( separator );
+            if ( i >= 128 ) sb.append( "ESC" );
+            sb.append( (char) ( i & 0x7f ) ).append( ':' ).append( n );
+            separator = ',';
+        }
+        
+        sb.append( " parse=" ).append( parseTime ).append( "ms" );
+        sb.append( " frames=" ).append( paintsDone ).append( '/' ).append( paintsRequested );
+        sb.append( " paint=" ).append( paintTime ).append( "ms" );
+        sb.append( " max=" ).append( maxPaintTime ).append( "ms" );
+        sb.append( " start=" ).append( startTime ).append( "ms" );
+        if ( output != null )
+        {
+            sb.append( " tx=" ).append( output.getBytes() );
+            sb.append( " writes=" ).append( output.getWrites() );
+        }
+        if ( queue != null )
         {
-            System.err.println( "Error on send: " + exc );
+            sb.append( " pauses=" ).append( queue.getPauses() );
         }
+        if ( predicting )
+        {
+            sb.append( " echo=" ).append( echoesConfirmed ).append( '/' ).append( echoesMissed );
+        }
+        if ( recorder != null )
+        {
+            sb.append( " rec=" ).append( recorder.getBytes() );
+        }
+        if ( archive != null )
+        {
+            sb.append( " history=" ).append( archive.getLines() );
+            sb.append( '/' ).append( archive.getStored() / 1024 ).append( 'k' );
+        }
+        Runtime runtime = Runtime.getRuntime();
+        sb.append( " heap=" ).append( runtime.freeMemory() / 1024 );
+        sb.append( '/' ).append( runtime.totalMemory() / 1024 ).append( 'k' );
+        return sb.toString();
     }
     
     /**
-    * Sends the specified bytes to the output stream.
-    * If no output stream is set, does nothing.
+    * Asks for the screen to be repainted.  The repaint is issued
+    * at once if the last one was at least a frame interval ago,
+    * otherwise it is scheduled for the end of the interval; any
+    * requests made meanwhile are satisfied by that same repaint,
+    * so the final state is always painted once input goes idle.
     */
-    public void send( byte b[] )
+    protected synchronized void requestRepaint()
     {
-        if ( output == null ) return;
+        paintsRequested++;
         
-        try
-        {   
-            output.write( b );
-            output.flush();
-        } 
-        catch ( IOException exc )
+        followView();
+        if ( cursorRow != damagedRow || cursorColumn != damagedColumn )
+        {
+            damageCell( damagedRow, damagedColumn );
+            damageCell( cursorRow, cursorColumn );
+            damagedRow = cursorRow;
+            damagedColumn = cursorColumn;
+        }
+        
+        if ( repaintPending ) return;
+        repaintPending = true;
+        
+        long delay = lastRepaint + frameInterval - System.currentTimeMillis();
+        if ( delay <= 0 || repaintTimer == null )
+        {
+            issueRepaint();
+        }
+        else
         {
-            System.err.println( "Error on send data: " + exc );
+            repaintTimer.schedule( new RepaintTask(), delay );
         }
     }
     
-    /**
-    * Appends the specified ascii string - no unicode allowed.
-    */
-    public void receive( String inString )
+    private synchronized void issueRepaint()
     {
-        receive( inString.toCharArray() );
+        repaintPending = false;
+        lastRepaint = System.currentTimeMillis();
+        
+        // consecutive damaged rows are repainted as one rectangle
+        int top = -1, from = columns, to = 0;
+        for ( int y = 0; y <= rows; y++ )
+        {
+            if ( y < rows && damageFrom[y] < damageTo[y] )
+            {
+                if ( top == -1 ) top = y;
+                from = Math.min( from, damageFrom[y] );
+                to = Math.max( to, damageTo[y] );
+                damageFrom[y] = columns;
+                damageTo[y] = 0;
+            }
+            else if ( top != -1 )
+            {
+                if ( !damageAll )
+                {
+                    repaint( 
+                        insetX + from*fontWidth, insetY + top*fontHeight,
+                        ( to - from )*fontWidth, ( y - top )*fontHeight );
+                }
+                top = -1;
+                from = columns;
+                to = 0;
+            }
+        }
+        if ( damageAll )
+        {
+            damageAll = false;
+            repaint();
+        }
+        else if ( showStats && statsTop >= 0 )
+        {
+            // the figures change with every frame
+            repaint( 0, statsTop, getWidth(), getHeight() - statsTop );
+        }
     }
     
     /**
-    * Appends the specified ascii character array - no unicode allowed.
+    * Marks the cells at buffer indices from (inclusive) to 
+    * (exclusive) as needing a repaint, if they are on screen.
     */
-    public void receive( char[] c )
+    private synchronized void damage( int from, int to )
     {
-        for ( int i = 0; i < c.length; i++ ) receive( (byte) c[i] ); 
+        generation++;
+        followView();
+        from = Math.max( from, scrollY * columns );
+        to = Math.min( to, ( scrollY + rows ) * columns );
+        
+        int y, x, end;
+        while ( from < to )
+        {
+            y = ( from - scrollY * columns ) / columns; // from may be negative
+            x = from - ( scrollY + y ) * columns;
+            end = Math.min( columns, x + to - from );
+            if ( x < damageFrom[y] ) damageFrom[y] = (short) x;
+            if ( end > damageTo[y] ) damageTo[y] = (short) end;
+            if ( x < dirtyFrom[y] ) dirtyFrom[y] = (short) x;
+            if ( end > dirtyTo[y] ) dirtyTo[y] = (short) end;
+            from += end - x;
+        }
     }
     
     /**
-    * Appends the specified ascii bytes to the output.
+    * Notices the view moving since damage was last recorded,
+    * and moves the rendered rows with it.
     */
-    public void receive( byte[] b )
+    private synchronized void followView()
     {
-        for ( int i = 0; i < b.length; i++ ) receive( b[i] );
+        int moved = discarded + scrollY - damagedTop;
+        if ( moved != 0 )
+        {
+            damagedTop += moved;
+            scrollDamage( 0, rows - 1, -moved );
+        }
     }
-
+    
     /**
-    * Appends the specified ascii byte to the output.
+    * Records that screen rows top to bottom (inclusive) have
+    * moved down by count rows, or up if count is negative: their
+    * pixels are to be moved in the back buffer, along with their
+    * dirty spans, and only the rows exposed need rendering.
     */
-    public void receive( byte b )
+    private synchronized void scrollDamage( int top, int bottom, int count )
     {
-        // ignore nulls
-        if ( b == 0 ) return; 
-
-        if ( state == PARAMS_STATE )
+        generation++;
+        int height = bottom - top + 1;
+        if ( dirtyAll || blitCount == MAX_BLITS || count >= height || -count >= height )
+        {
+            damageScreen();
+            return;
+        }
+        blits[ blitCount*3 ] = top;
+        blits[ blitCount*3 + 1 ] = bottom;
+        blits[ blitCount*3 + 2 ] = count;
+        blitCount++;
+        
+        int y;
+        if ( count > 0 )
         {
-            // if still receiving parameters
-            if ( b < 64 )
+            for ( y = bottom; y >= top + count; y-- )
             {
-                argbuf[0]++;
-                
-                // grow if needed
-                if ( argbuf[0] == argbuf.length )
-                {
-                    char[] tmp = new char[ argbuf.length * 2 ];
-                    System.arraycopy( argbuf, 0, tmp, 0, argbuf.length );
-                    argbuf = tmp; 
-                }
-                
-                argbuf[ argbuf[0] ] = (char) b;
+                dirtyFrom[y] = dirtyFrom[ y - count ];
+                dirtyTo[y] = dirtyTo[ y - count ];
             }
-            else // final byte: process the command
+            for ( y = top; y < top + count; y++ )
             {
-                processCommand( b );
-
-                // reset for next command
-                argbuf[0] = 0;
-                state = NORMAL_STATE;
+                dirtyFrom[y] = 0;
+                dirtyTo[y] = columns;
             }
         }
         else
-        if ( state == ESCAPE_STATE )
         {
-            // if a valid escape sequence
-            if ( b == '[' )
+            for ( y = top; y <= bottom + count; y++ )
             {
-                state = PARAMS_STATE;
+                dirtyFrom[y] = dirtyFrom[ y - count ];
+                dirtyTo[y] = dirtyTo[ y - count ];
             }
-            else // not an escape sequence
-            { 
-                // allow escape to pass through
-                state = NORMAL_STATE;
-                processData( (byte) 27 );
-                processData( b );
+            for ( y = bottom + count + 1; y <= bottom; y++ )
+            {
+                dirtyFrom[y] = 0;
+                dirtyTo[y] = columns;
             }
         }
-        else // NORMAL_STATE
+        
+        // every pixel of the band changes on screen
+        for ( y = top; y <= bottom; y++ )
         {
-            if ( b == 27 )
-            {
-                state = ESCAPE_STATE;
-            }
-            else
-            {
-                processData( b );
-            }
+            damageFrom[y] = 0;
+            damageTo[y] = columns;
         }
     }
-
+    
+    private void damageCell( int row, int column )
+    {
+        damage( row * columns + column, row * columns + column + 1 );
+    }
+    
+    private void damageScreen()
+    {
+        generation++;
+        damageAll = true;
+        dirtyAll = true;
+        blitCount = 0; // everything is rendered again anyway
+    }
+    
+    private class RepaintTask extends TimerTask
+    {
+        public void run()
+        {
+            issueRepaint();
+        }
+    }
+    
     /**
-    * Appends the specified byte to the display buffer.
+    * Turns predicted echo on or off.
     */
-    protected void processData( byte b )
-    { 
-        // grow buffer as needed
-        if ( cursor + columns > buffer.length )
+    public synchronized void setPredicting( boolean enable )
+    {
+        predicting = enable;
+        if ( !enable ) rollBack();
+    }
+    
+    public boolean isPredicting()
+    {
+        return predicting;
+    }
+    
+    /**
+    * Predicts the echo of the specified keystrokes, which are
+    * about to be sent.
+    */
+    public synchronized void predict( byte[] b, int off, int len )
+    {
+        for ( int i = off; i < off + len; i++ ) predict( b[i] );
+    }
+    
+    /**
+    * Predicts the echo of the specified keystroke, which is
+    * about to be sent.
+    */
+    public synchronized void predict( byte b )
+    {
+        if ( !predicting ) return;
+        
+        if ( ( b == 8 || b == 127 ) && predictionCount > 0 )
         {
-            try
-            {
-                // expand by sixteen screenfuls at a time
-                byte[] tmp = new byte[ buffer.length + rows*columns*16 ];
-                System.arraycopy( buffer, 0, tmp, 0, buffer.length );
-                buffer = tmp;
-            } 
-            catch ( OutOfMemoryError e )
+            // erasing a character not yet echoed
+            damagePredictions();
+            predictionCount--;
+            return;
+        }
+        if ( b < 32 || b > 126 || predictionHeld )
+        {
+            // what the host makes of anything else is anyone's guess
+            predictionHeld = true;
+            return;
+        }
+        
+        if ( predictedLine < discarded ) rollBack(); // scrolled out of the scrollback
+        if ( predictionCount == 0 )
+        {
+            if ( discarded + cursorRow == echolessLine || isPasswordPrompt() )
             {
-                // no more memory to grow: just clear half and reuse the existing buffer
-                System.err.println( "Could not allocate buffer larger than: " + buffer.length );
-                int i, half = buffer.length / 2;
-                for ( i = 0; i < half; i++ ) buffer[i] = buffer[i+half];
-                for ( i = half; i < buffer.length; i++ ) buffer[i] = 0;
-                int oldLastScreen = calcLastVisibleScreen();
-                cursor = cursor - half; // start from last input
-                if ( scrollY == oldLastScreen ) scrollY = calcLastVisibleScreen();
+                echolessLine = discarded + cursorRow;
+                return;
             }
-       }
-        
-        // start with the last screen containing the cursor
-        int offsetY = calcLastVisibleScreen();
-        
-        switch ( b )
+            predictedLine = discarded + cursorRow;
+            predictedColumn = cursorColumn;
+            predictedAt = System.currentTimeMillis();
+            if ( repaintTimer != null ) repaintTimer.schedule( new EchoTimeout(), ECHO_TIMEOUT );
+        }
+        int column = predictedColumn + predictionCount;
+        if ( column >= columns )
         {
-	    case 7: // Zane - bell
-	    midletDisplay.vibrate(800);
-	    break;
-
-            case 8: // back space
-            cursor--;
-            break;
+            // the echo would wrap
+            predictionHeld = true;
+            return;
+        }
+        byte[] l = lines[ ( origin + predictedLine - discarded ) % capacity ];
+        replaced[ predictionCount ] = ( l != null ) ? l[column] : 0;
+        predicted[ predictionCount++ ] = b;
+        damagePredictions();
+    }
+    
+    /**
+    * Returns whether the cursor's line asks for a password,
+    * which will not be echoed.
+    */
+    private boolean isPasswordPrompt()
+    {
+        byte[] l = lines[ ( origin + cursorRow ) % capacity ];
+        if ( l == null ) return false;
         
-            case 10: // line feed
-            cursor = cursor + columns - ( cursor % columns );
-            break;
-            
-            case 13: // carriage return
-            cursor = cursor - ( cursor % columns );
-            break;
-            
-            default: 
-            if ( b > 31 ) 
-            { 
-                // only show visible characters
-                buffer[cursor++] = b;
+        int c;
+        for ( int i = 0; i + 4 <= cursorColumn; i++ )
+        {
+            c = l[i] | 0x20; // lower case
+            if ( ( c == 'p' && ( l[i+1] | 0x20 ) == 'a' && ( l[i+2] | 0x20 ) == 's' 
+                    && ( l[i+3] | 0x20 ) == 's' ) // password, passphrase
+                || ( c == 'p' && ( l[i+1] | 0x20 ) == 'i' && ( l[i+2] | 0x20 ) == 'n' 
+                    && l[i+3] == ':' ) ) // PIN:
+            {
+                return true;
             }
-            // ignore all others
         }
-
-        // increment bound if necessary
-        while ( cursor > bound ) bound += columns;
+        return false;
+    }
+    
+    /**
+    * Checks the predictions against what the host has written:
+    * echoed ones are dropped, as are all of them once the host
+    * writes something else over one.
+    */
+    private synchronized void checkPredictions()
+    {
+        if ( discarded + cursorRow != echolessLine ) echolessLine = -1;
+        if ( predictionCount == 0 )
+        {
+            predictionHeld = false;
+            return;
+        }
         
-        // if the user has scrolled back, don't lose
-        // their position when new input comes in
-        int newY = calcLastVisibleScreen();
-        if ( newY != offsetY && offsetY == scrollY )
+        int row = predictedLine - discarded;
+        if ( row < 0 )
         {
-            // otherwise, make the latest input visible
-            scrollY = (short) newY;
+            // scrolled out of the scrollback
+            rollBack();
+            return;
         }
-
-        repaint();
+        byte[] l = lines[ ( origin + row ) % capacity ];
+        byte[] h = ( highs != null ) ? highs[ ( origin + row ) % capacity ] : null;
+        byte c;
+        while ( predictionCount > 0 )
+        {
+            c = ( l != null ) ? l[ predictedColumn ] : 0;
+            if ( h != null && h[ predictedColumn ] != 0 )
+            {
+                // not a byte that could have been typed
+                rollBack();
+                break;
+            }
+            if ( c == predicted[0] )
+            {
+                damagePredictions();
+                predictionCount--;
+                System.arraycopy( predicted, 1, predicted, 0, predictionCount );
+                System.arraycopy( replaced, 1, replaced, 0, predictionCount );
+                predictedColumn++;
+                predictedAt = System.currentTimeMillis();
+                echoesConfirmed++;
+            }
+            else
+            {
+                if ( c != replaced[0] ) rollBack();
+                break;
+            }
+        }
+        if ( predictionCount == 0 ) predictionHeld = false;
     }
     
     /**
-    * Executes the specified ANSI command, obtaining arguments
-    * as needed from the getArgument() and getArgumentCount() methods.
+    * Drops all predictions.
     */
-    protected void processCommand( byte command )
-    { //System.out.println( "processCommand: " + (char) command + " : " + new String( argbuf, 1, argbuf[0] ) );
-        try 
+    private synchronized void rollBack()
+    {
+        if ( predictionCount == 0 ) return;
+        damagePredictions();
+        predictionCount = 0;
+        predictionHeld = false;
+        echoesMissed++;
+        requestRepaint();
+    }
+    
+    /**
+    * Damages the predicted cells and the cell after them,
+    * where the cursor is drawn.
+    */
+    private void damagePredictions()
+    {
+        int start = ( predictedLine - discarded ) * columns + predictedColumn;
+        if ( start >= 0 ) damage( start, start + Math.min( predictionCount + 1, columns - predictedColumn ) );
+    }
+    
+    /**
+    * Gives up on predictions the host has not echoed in time.
+    */
+    private class EchoTimeout extends TimerTask
+    {
+        public void run()
         {
-            int arg = 0;
-            switch ( command )
+            synchronized ( TelnetCanvas.this )
             {
-                case 'H': // cursor position to x, y or home
-                case 'f': // cursor position to x, y or home
-                    if ( argbuf[0] > 0 )
-                    {
-                        cursor = bound-1 - ((rows-getArgument( 0 ))*columns) - (columns-getArgument( 1 ));
-                    }
-                    else
-                    { // return to top-left position
-                        cursor = bound - ( rows * columns );
-                    }
-                    break;
-                
-                case 'A': // cursor up by x
-                    if ( argbuf[0] == 0 ) 
-                    {
-                        cursor = cursor - columns;
-                    }
-                    else
-                    {
-                        cursor = cursor - columns * getArgument( 0 );
-                    }
-                    break;
-                
-                case 'B': // cursor down by x
-                    if ( argbuf[0] == 0 ) 
-                    {
-                        cursor = cursor + columns;
-                    }
-                    else
-                    {
-                        cursor = cursor + columns * getArgument( 0 );
-                    }
-                    break;
-                
-                case 'C': // cursor forward by x
-                    if ( argbuf[0] == 0 ) 
+                if ( predictionCount == 0 ) return;
+                long wait = predictedAt + ECHO_TIMEOUT - System.currentTimeMillis();
+                if ( wait > 0 )
+                {
+                    repaintTimer.schedule( new EchoTimeout(), wait );
+                    return;
+                }
+                echolessLine = predictedLine;
+                rollBack();
+            }
+        }
+    }
+    
+    /**
+    * Sets the number of lines of scrollback, including the
+    * screen itself.  Takes effect on the next reset().
+    */
+    public void setScrollback( int lineCount )
+    {
+        capacity = lineCount;
+    }
+    
+    /**
+    * Sets the number of kilobytes of history kept in the 
+    * record store beyond the scrollback, 0 for none.  Takes 
+    * effect on the next reset().
+    */
+    public void setHistory( int kilobytes )
+    {
+        historyBudget = kilobytes;
+    }
+    
+    /**
+    * Returns whether the terminal is in "scroll-lock" mode:
+    * arrow keys will scroll the local display instead of
+    * being sent to the remote host.
+    */
+    public boolean isScrolling()
+    {
+        return scrolling;
+    }
+    
+    /**
+    * Sets whether the terminal is in "scroll-lock" mode:
+    * arrow keys will scroll the local display instead of
+    * being sent to the remote host.
+    */
+    public synchronized void setScrolling( boolean isScrolling )
+    {
+        scrolling = isScrolling;
+        if ( !scrolling && matchLine >= 0 )
+        {
+            // done searching
+            damageMatch();
+            matchLine = -1;
+            requestRepaint();
+        }
+    }
+    
+    /**
+    * Sets the writer used to send user input.
+    */
+    public void setOutputWriter( OutputWriter writer )
+    {
+        output = writer;
+        sendFailed = false;
+    }
+    
+    /**
+    * Sets the queue received output is parsed from, for the 
+    * statistics: the times it sent the host XOFF.
+    */
+    public void setInputQueue( InputQueue inputQueue )
+    {
+        queue = inputQueue;
+    }
+    
+    /**
+    * Records everything received from now on with the specified
+    * recorder, or stops recording if null.
+    */
+    public synchronized void setRecorder( SessionRecorder sessionRecorder )
+    {
+        recorder = sessionRecorder;
+    }
+    
+    /**
+    * Queues the specified byte on the output writer.
+    * If no writer is set, does nothing.
+    */
+    public void send( byte b )
+    {
+        if ( output == null ) return;
+        
+        predict( b );
+        try
+        {   
+            output.write( b );
+        } 
+        catch ( IOException exc )
+        {
+            sendFailed( exc );
+        }
+    }
+    
+    /**
+    * Queues the specified bytes on the output writer.
+    * If no writer is set, does nothing.
+    */
+    public void send( byte b[] )
+    {
+        if ( output == null ) return;
+        
+        predict( b, 0, b.length );
+        try
+        {   
+            output.write( b );
+        } 
+        catch ( IOException exc )
+        {
+            sendFailed( exc );
+        }
+    }
+    
+    /**
+    * Shows that sending failed, the first time it does.
+    */
+    private void sendFailed( IOException exc )
+    {
+        if ( sendFailed ) return;
+        sendFailed = true;
+        receive( "Send Failed: " + exc.getMessage() + "\n" );
+    }
+    
+    /**
+    * Appends the specified string.
+    */
+    public void receive( String inString )
+    {
+        receive( inString.toCharArray() );
+    }
+    
+    /**
+    * Appends the specified characters, encoded as UTF-8 
+    * as if they had been received.
+    */
+    public void receive( char[] c )
+    {
+        byte[] b = new byte[ c.length * 3 ];
+        int n = 0;
+        for ( int i = 0; i < c.length; i++ )
+        {
+            if ( c[i] < 0x80 )
+            {
+                b[n++] = (byte) c[i];
+            }
+            else if ( c[i] < 0x800 )
+            {
+                b[n++] = (byte) ( 0xc0 | ( c[i] >> 6 ) );
+                b[n++] = (byte) ( 0x80 | ( c[i] & 0x3f ) );
+            }
+            else
+            {
+                b[n++] = (byte) ( 0xe0 | ( c[i] >> 12 ) );
+                b[n++] = (byte) ( 0x80 | ( ( c[i] >> 6 ) & 0x3f ) );
+                b[n++] = (byte) ( 0x80 | ( c[i] & 0x3f ) );
+            }
+        }
+        receive( b, 0, n );
+    }
+    
+    /**
+    * Appends the specified ascii bytes to the output.
+    */
+    public void receive( byte[] b )
+    {
+        receive( b, 0, b.length );
+    }
+
+    /**
+    * Appends the specified range of ascii bytes to the output.
+    * The bytes are parsed with the lock held, so that they are
+    * painted all at once.
+    */
+    public synchronized void receive( byte[] b, int off, int len )
+    {
+        long start = System.currentTimeMillis();
+        bytesReceived += len;
+        if ( recorder != null ) record( b, off, len );
+        parser.parse( b, off, len );
+        if ( predicting ) checkPredictions();
+        parseTime += System.currentTimeMillis() - start;
+    }
+
+    /**
+    * Appends the specified ascii byte to the output.
+    */
+    public synchronized void receive( byte b )
+    {
+        long start = System.currentTimeMillis();
+        bytesReceived++;
+        if ( recorder != null )
+        {
+            recordedByte[0] = b;
+            record( recordedByte, 0, 1 );
+        }
+        parser.parse( b );
+        if ( predicting ) checkPredictions();
+        parseTime += System.currentTimeMillis() - start;
+    }
+
+    /**
+    * Hands received bytes to the recorder, dropping it if 
+    * it fails: the session goes on unrecorded, after saying so.
+    */
+    private void record( byte[] b, int off, int len )
+    {
+        try
+        {
+            recorder.record( b, off, len );
+        }
+        catch ( IOException exc )
+        {
+            recorder = null;
+            receive( "Recording Failed: " + exc.getMessage() + "\n" );
+        }
+    }
+    
+    /**
+    * Appends the specified byte to the display buffer.
+    */
+    protected void processData( byte b )
+    {
+        // start with the last screen containing the cursor
+        boolean follow = ( scrollY == calcLastVisibleScreen() );
+        
+        switch ( b )
+        {
+	    case 7: // Zane - bell
+	    midletDisplay.vibrate(800);
+	    break;
+
+            case 8: // back space
+            if ( cursorColumn > 0 ) cursorColumn--;
+            break;
+            
+            case 10: // line feed
+            index();
+            cursorColumn = 0;
+            break;
+            
+            case 13: // carriage return
+            cursorColumn = 0;
+            break;
+            
+            default:
+            if ( b > 31 )
+            {
+                // only show visible characters
+                put( b );
+            }
+            // ignore all others
+        }
+        
+        ensureCapacity();
+        advanceBound( follow );
+        requestRepaint();
+    }
+    
+    /**
+    * Appends the specified character, decoded from UTF-8,
+    * to the display buffer.
+    */
+    protected void processChar( int c )
+    {
+        // start with the last screen containing the cursor
+        boolean follow = ( scrollY == calcLastVisibleScreen() );
+        
+        put( c );
+        
+        ensureCapacity();
+        advanceBound( follow );
+        requestRepaint();
+    }
+    
+    /**
+    * Writes the specified character at the cursor,
+    * moving the cursor on.
+    */
+    private void put( int c )
+    {
+        damageCell( cursorRow, cursorColumn );
+        line( cursorRow )[ cursorColumn ] = (byte) c;
+        if ( c > 0xff )
+        {
+            highLine( cursorRow )[ cursorColumn ] = (byte) ( c >> 8 );
+        }
+        else
+        {
+            clearHigh( cursorRow, cursorColumn, cursorColumn + 1 );
+        }
+        fillAttr( cursorRow, cursorColumn, cursorColumn + 1, attr );
+        if ( ++cursorColumn == columns )
+        {
+            index();
+            cursorColumn = 0;
+        }
+    }
+    
+    /**
+    * Appends the specified run of visible bytes to the display 
+    * buffer, a line at a time, with a single repaint at the end.
+    */
+    protected void processData( byte[] b, int off, int len )
+    {
+        // start with the last screen containing the cursor
+        boolean follow = ( scrollY == calcLastVisibleScreen() );
+        
+        int n;
+        while ( len > 0 )
+        {
+            // copy no further than the end of the cursor's line
+            n = Math.min( len, columns - cursorColumn );
+            System.arraycopy( b, off, line( cursorRow ), cursorColumn, n );
+            clearHigh( cursorRow, cursorColumn, cursorColumn + n );
+            fillAttr( cursorRow, cursorColumn, cursorColumn + n, attr );
+            damage( cursorRow * columns + cursorColumn, cursorRow * columns + cursorColumn + n );
+            cursorColumn += n;
+            if ( cursorColumn == columns )
+            {
+                index();
+                cursorColumn = 0;
+                ensureCapacity();
+            }
+            off += n;
+            len -= n;
+        }
+        
+        advanceBound( follow );
+        requestRepaint();
+    }
+    
+    /**
+    * Moves the cursor down a row, scrolling the scroll region up
+    * if the cursor is on its last row.  While the region is the
+    * whole screen, the screen moves down the buffer instead, so
+    * that the line scrolled off goes into the scrollback.
+    */
+    private void index()
+    {
+        int top = lineCount - rows;
+        if ( scrollTop == 0 && scrollBottom == rows - 1 )
+        {
+            cursorRow++;
+        }
+        else if ( cursorRow == top + scrollBottom )
+        {
+            rotate( top + scrollTop, top + scrollBottom, -1 );
+        }
+        else if ( cursorRow < top + rows - 1 )
+        {
+            cursorRow++;
+        }
+    }
+    
+    /**
+    * Moves the cursor up a row, scrolling the scroll region 
+    * down if the cursor is on its first row.
+    */
+    private void reverseIndex()
+    {
+        int top = lineCount - rows;
+        if ( cursorRow == top + scrollTop )
+        {
+            rotate( top + scrollTop, top + scrollBottom, 1 );
+        }
+        else if ( cursorRow > top )
+        {
+            cursorRow--;
+        }
+    }
+    
+    /**
+    * Makes sure the ring holds the cursor's line, recycling
+    * the oldest lines if it does not.
+    */
+    private void ensureCapacity()
+    {
+        while ( cursorRow >= capacity )
+        {
+            // the oldest line becomes the newest: every index 
+            // moves up a line, and the view with it
+            byte[] l = lines[origin];
+            if ( archive != null ) archive.add( l, attrs[origin], ( highs != null ) ? highs[origin] : null );
+            if ( l != null )
+            {
+                for ( int i = 0; i < columns; i++ ) l[i] = 0;
+            }
+            fillAttr( 0, 0, columns, (short) 0 );
+            if ( highs != null ) highs[origin] = null;
+            origin = ( origin + 1 ) % capacity;
+            cursorRow--;
+            lineCount--;
+            damagedRow--;
+            discarded++;
+            if ( scrollY > firstRow() ) scrollY--; // the view stays put
+        }
+    }
+    
+    /**
+    * Returns the line at the specified row, allocating it
+    * if it has not been written to yet.
+    */
+    private byte[] line( int row )
+    {
+        int slot = ( origin + row ) % capacity;
+        byte[] l = lines[slot];
+        if ( l == null )
+        {
+            l = new byte[columns];
+            lines[slot] = l;
+        }
+        return l;
+    }
+    
+    /**
+    * Sets the attribute of the cells from (inclusive) to (exclusive)
+    * in the specified row, allocating the row's attributes only
+    * if the value is not the default.
+    */
+    private void fillAttr( int row, int from, int to, short value )
+    {
+        if ( value == 0 && attrs[ ( origin + row ) % capacity ] == null ) return;
+        short[] a = attrLine( row );
+        for ( int i = from; i < to; i++ ) a[i] = value;
+    }
+    
+    /**
+    * Returns the attributes of the specified row, allocating
+    * them if needed.
+    */
+    private short[] attrLine( int row )
+    {
+        int slot = ( origin + row ) % capacity;
+        short[] a = attrs[slot];
+        if ( a == null )
+        {
+            a = new short[columns];
+            attrs[slot] = a;
+        }
+        return a;
+    }
+    
+    /**
+    * Returns the high bytes of the specified row, allocating
+    * them, and the plane, if needed.
+    */
+    private byte[] highLine( int row )
+    {
+        if ( highs == null ) highs = new byte[capacity][];
+        int slot = ( origin + row ) % capacity;
+        byte[] h = highs[slot];
+        if ( h == null )
+        {
+            h = new byte[columns];
+            highs[slot] = h;
+        }
+        return h;
+    }
+    
+    /**
+    * Clears the high bytes of the cells from (inclusive) to 
+    * (exclusive) in the specified row, if it has any.
+    */
+    private void clearHigh( int row, int from, int to )
+    {
+        if ( highs == null ) return;
+        byte[] h = highs[ ( origin + row ) % capacity ];
+        if ( h == null ) return;
+        for ( int i = from; i < to; i++ ) h[i] = 0;
+    }
+    
+    /**
+    * Moves rows top to bottom (inclusive) down by count rows, or
+    * up if count is negative, by rotating the line references.
+    * The rows pushed out at one end come back blanked at the
+    * other, so the cost depends on the number of rows, not on
+    * their contents.
+    */
+    private void rotate( int top, int bottom, int count )
+    {
+        int height = bottom - top + 1;
+        if ( count >= height || -count >= height )
+        {
+            clear( top * columns, ( bottom + 1 ) * columns );
+            return;
+        }
+        if ( top >= scrollY && bottom < scrollY + rows )
+        {
+            followView();
+            scrollDamage( top - scrollY, bottom - scrollY, count );
+        }
+        else
+        {
+            damage( top * columns, ( bottom + 1 ) * columns );
+        }
+        
+        // rotating right by n is reversing the whole,
+        // then the first n and the rest separately
+        int n = ( count > 0 ) ? count : height + count;
+        reverse( top, bottom );
+        reverse( top, top + n - 1 );
+        reverse( top + n, bottom );
+        
+        if ( count > 0 ) clear( top * columns, ( top + count ) * columns );
+        else clear( ( bottom + 1 + count ) * columns, ( bottom + 1 ) * columns );
+    }
+    
+    /**
+    * Reverses the order of the rows from and to (inclusive).
+    */
+    private void reverse( int from, int to )
+    {
+        int a, b;
+        byte[] l;
+        short[] at;
+        while ( from < to )
+        {
+            a = ( origin + from++ ) % capacity;
+            b = ( origin + to-- ) % capacity;
+            l = lines[a];
+            lines[a] = lines[b];
+            lines[b] = l;
+            at = attrs[a];
+            attrs[a] = attrs[b];
+            attrs[b] = at;
+            if ( highs != null )
+            {
+                l = highs[a];
+                highs[a] = highs[b];
+                highs[b] = l;
+            }
+        }
+    }
+
+    /**
+    * Blanks the cells at buffer indices from (inclusive)
+    * to (exclusive), leaving them in the current background.
+    */
+    private void clear( int from, int to )
+    {
+        damage( from, to );
+        
+        short erased = (short) ( attr & BG_MASK );
+        int x, end;
+        byte[] l;
+        while ( from < to )
+        {
+            x = from % columns;
+            end = Math.min( columns, x + to - from );
+            l = lines[ ( origin + from / columns ) % capacity ];
+            if ( l != null )
+            {
+                for ( int i = x; i < end; i++ ) l[i] = 0;
+            }
+            clearHigh( from / columns, x, end );
+            fillAttr( from / columns, x, end, erased );
+            from += end - x;
+        }
+    }
+    
+    /**
+    * Extends the lines in use to cover the cursor, and follows
+    * the new input if the display was showing the last screen
+    * before it arrived.
+    */
+    private void advanceBound( boolean follow )
+    {
+        // the screen moves down with the cursor
+        if ( cursorRow >= lineCount ) lineCount = cursorRow + 1;
+        
+        // if the user has scrolled back, don't lose
+        // their position when new input comes in
+        if ( follow )
+        {
+            // otherwise, make the latest input visible
+            scrollY = calcLastVisibleScreen();
+        }
+    }
+    
+    /**
+    * Executes the specified ANSI command, obtaining arguments
+    * as needed from the parser.
+    */
+    protected void processCommand( byte command )
+    {
+        int arg;
+        int top = lineCount - rows; // the screen's first row
+        int cursor = cursorRow * columns + cursorColumn;
+        byte received = command;
+        sequences++;
+        
+        // only modes take a private marker, and no 
+        // sequences with intermediates are supported
+        if ( parser.getIntermediate() != 0 
+            || ( parser.getPrivateMarker() != 0 && command != 'h' && command != 'l' ) )
+        {
+            command = 0;
+        }
+        
+        switch ( command )
+        {
+            case 'H': // cursor position to x, y or home
+            case 'f': // cursor position to x, y or home
+                cursorRow = top + Math.min( parser.getParam( 0, 1 ), rows ) - 1;
+                cursorColumn = Math.min( parser.getParam( 1, 1 ), columns ) - 1;
+                break;
+            
+            case 'A': // cursor up by x
+                cursorRow = Math.max( top, cursorRow - parser.getParam( 0, 1 ) );
+                break;
+            
+            case 'B': // cursor down by x
+                cursorRow = Math.min( lineCount - 1, cursorRow + parser.getParam( 0, 1 ) );
+                break;
+            
+            case 'C': // cursor forward by x
+                cursorColumn = Math.min( columns - 1, cursorColumn + parser.getParam( 0, 1 ) );
+                break;
+            
+            case 'D': // cursor backward by x
+                cursorColumn = Math.max( 0, cursorColumn - parser.getParam( 0, 1 ) );
+                break;
+            
+            case 'd': // cursor to row x (preserve column position)
+                cursorRow = top + Math.min( parser.getParam( 0, 1 ), rows ) - 1;
+                break;
+            
+            case 'G': // cursor to column x (preserve row position)
+                cursorColumn = Math.min( parser.getParam( 0, 1 ), columns ) - 1;
+                break;
+            
+            case '@': // insert x blank spaces
+                arg = Math.min( parser.getParam( 0, 1 ), columns - cursorColumn );
+                damage( cursor, cursor + columns - cursorColumn );
+                {
+                    byte[] l = line( cursorRow );
+                    short[] a = attrs[ ( origin + cursorRow ) % capacity ];
+                    int x = cursorColumn;
+                    byte[] h = ( highs != null ) ? highs[ ( origin + cursorRow ) % capacity ] : null;
+                    System.arraycopy( l, x, l, x+arg, columns-x-arg );
+                    if ( a != null ) System.arraycopy( a, x, a, x+arg, columns-x-arg );
+                    if ( h != null ) System.arraycopy( h, x, h, x+arg, columns-x-arg );
+                    for ( int i = x; i < x+arg; i++ )
                     {
-                        cursor = cursor + 1;
+                        l[i] = ' ';
                     }
-                    else
+                    clearHigh( cursorRow, x, x+arg );
+                    fillAttr( cursorRow, x, x+arg, (short) ( attr & BG_MASK ) );
+                }
+                break;
+            
+            case 'L': // insert x blank lines at the cursor's line
+                if ( cursorRow >= top + scrollTop && cursorRow <= top + scrollBottom )
+                {
+                    rotate( cursorRow, top + scrollBottom, parser.getParam( 0, 1 ) );
+                }
+                break;
+            
+            case 'M': // delete x lines from the cursor's line
+                if ( cursorRow >= top + scrollTop && cursorRow <= top + scrollBottom )
+                {
+                    rotate( cursorRow, top + scrollBottom, -parser.getParam( 0, 1 ) );
+                }
+                break;
+            
+            case 'S': // scroll the region up x lines
+                rotate( top + scrollTop, top + scrollBottom, -parser.getParam( 0, 1 ) );
+                break;
+            
+            case 'T': // scroll the region down x lines
+                rotate( top + scrollTop, top + scrollBottom, parser.getParam( 0, 1 ) );
+                break;
+            
+            case 'r': // set scroll region to rows x to y, or the screen
+                arg = Math.min( parser.getParam( 1, rows ), rows );
+                if ( parser.getParam( 0, 1 ) < arg )
+                {
+                    scrollTop = parser.getParam( 0, 1 ) - 1;
+                    scrollBottom = arg - 1;
+                    cursorRow = top;
+                    cursorColumn = 0;
+                }
+                break;
+            
+            case 'P': // delete x characters from cursor
+                arg = Math.min( parser.getParam( 0, 1 ), columns - cursorColumn );
+                damage( cursor, cursor + columns - cursorColumn );
+                {
+                    byte[] l = line( cursorRow );
+                    short[] a = attrs[ ( origin + cursorRow ) % capacity ];
+                    int x = cursorColumn;
+                    byte[] h = ( highs != null ) ? highs[ ( origin + cursorRow ) % capacity ] : null;
+                    System.arraycopy( l, x+arg, l, x, columns-x-arg );
+                    if ( a != null ) System.arraycopy( a, x+arg, a, x, columns-x-arg );
+                    if ( h != null ) System.arraycopy( h, x+arg, h, x, columns-x-arg );
+                    for ( int i = columns-arg; i < columns; i++ )
                     {
-                        cursor = cursor + getArgument( 0 );
+                        l[i] = 0;
                     }
-                    break;
-                
-                case 'D': // cursor backward by x
-                    if ( argbuf[0] == 0 ) 
+                    clearHigh( cursorRow, columns-arg, columns );
+                    fillAttr( cursorRow, columns-arg, columns, (short) ( attr & BG_MASK ) );
+                }
+                break;
+            
+            case 's': // save cursor position
+                saveCursor();
+                break;
+            
+            case 'u': // restore cursor position
+                restoreCursor();
+                break;
+            
+            case 'J': // clear region
+                switch ( parser.getParam( 0, 0 ) )
+                {
+                    case 1: // from beginning of screen to cursor
+                        clear( top * columns, cursor + 1 );
+                        break;
+                    case 2: // clear all screen
+                        cursorRow = top;
+                        cursorColumn = 0;
+                        clear( top * columns, lineCount * columns );
+                        break;
+                    default: // from cursor to end of screen
+                        clear( cursor, lineCount * columns );
+                        break;
+                }
+                break;
+            
+            case 'K': // erase rest of line
+                switch ( parser.getParam( 0, 0 ) )
+                {
+                    case 1: // from beginning of line to cursor
+                        clear( cursorRow * columns, cursor + 1 );
+                        break;
+                    case 2: // clear all line
+                        clear( cursorRow * columns, ( cursorRow + 1 ) * columns );
+                        break;
+                    default: // from cursor to end of line
+                        clear( cursor, ( cursorRow + 1 ) * columns );
+                        break;
+                }
+                break;
+            
+            case 'm': // set graphics mode
+                setGraphicsMode();
+                break;
+            
+            case 'h': // set emulation option
+            case 'l': // unset emulation option
+                arg = parser.getParamCount();
+                for ( int i = 0; i < arg; i++ )
+                {
+                    if ( parser.getPrivateMarker() == '?' && parser.getParam( i, 0 ) == 1 )
                     {
-                        cursor = cursor - 1;
+                        // cursor key mode
+                        applicationKeys = ( command == 'h' );
                     }
                     else
                     {
-                        cursor = cursor - getArgument( 0 );
-                    }
-                    break;
-                
-                case 'd': // cursor to row x (preserve column position)
-                    if ( argbuf[0] > 0 ) 
-                    {
-                        cursor = bound - ((rows-getArgument( 0 )+1)*columns) + ( cursor % columns );
-                    }
-                    break;
-                
-                case 'G': // cursor to column x (preserve row position)
-                    if ( argbuf[0] > 0 ) 
-                    {
-                        cursor = cursor - ( cursor % columns ) + getArgument( 0 );
-                    }
-                    break;
-                
-                case '@': // insert x blank spaces
-                    arg = getArgument( 0 );
-                    for ( int i = cursor + columns-(cursor%columns); i > cursor+arg; i-- )
-                    {
-                        buffer[i] = buffer[i-arg];
-                    }
-                    for ( int i = cursor; i < cursor+arg; i++ )
-                    {
-                        buffer[i] = ' ';
-                    }
-                    break;
-                
-                case 'L': // insert x blank lines (not from cursor?)
-                    arg = getArgument( 0 ) * columns;
-                    {
-                        int origin = cursor - (cursor%columns);
-                        for ( int i = bound; i >= origin+arg; i-- )
-                        {
-                            buffer[i] = buffer[i-arg];
-                        }
-                        for ( int i = origin; i < origin+arg; i++ )
-                        {
-                            buffer[i] = 0;
-                        }
+                        unsupportedCommands[ received & 0x7f ]++;
                     }
-                    break;
-                
-                case 'M': // delete x lines from cursor
-                    arg = getArgument( 0 ) * columns;
-                    for ( int i = cursor; i < bound; i++ )
-                    {
-                        if ( i < cursor + arg )
-                        {
-                            buffer[i] = buffer[i+arg];
-                        }
-                        else
-                        {
-                            buffer[i] = 0;
-                        }
-                    }
-                    break;
-                
-                case 'P': // delete x characters from cursor
-                    arg = getArgument( 0 );
-                    for ( int i = cursor; i%columns!=0; i++ )
-                    {
-                        if ( i < cursor + arg )
-                        {
-                            buffer[i] = buffer[i+arg];
-                        }
-                        else
-                        {
-                            buffer[i] = 0;
-                        }
-                    }
-                    break;
-                
-                case 's': // save cursor position
-                    savedCursor = cursor;
-                    break;
-
-                case 'u': // restore cursor position
-                    cursor = savedCursor;
-                    break;
+                }
+                break;
+            
+            case 'p': // define keyboard mappings
+            default:
+                unsupportedCommands[ received & 0x7f ]++;
+        }
+        
+        requestRepaint();
+    }
+    
+    /**
+    * Saves the cursor position, relative to the screen.
+    */
+    private void saveCursor()
+    {
+        savedRow = cursorRow - ( lineCount - rows );
+        savedColumn = cursorColumn;
+    }
+    
+    /**
+    * Moves the cursor back to the saved position.
+    */
+    private void restoreCursor()
+    {
+        cursorRow = lineCount - rows + savedRow;
+        cursorColumn = savedColumn;
+    }
+    
+    /**
+    * Applies the parameters of an SGR sequence to the 
+    * current attribute.
+    */
+    private void setGraphicsMode()
+    {
+        int a = attr;
+        int argc = Math.max( 1, parser.getParamCount() );
+        int p, color;
+        for ( int i = 0; i < argc; i++ )
+        {
+            p = parser.getParam( i, 0 );
+            switch ( p )
+            {
+                case 0: a = 0; break;
+                case 1: a |= BOLD; break;
+                case 4: a |= UNDERLINE; break;
+                case 7: a |= REVERSE; break;
+                case 22: a &= ~BOLD; break;
+                case 24: a &= ~UNDERLINE; break;
+                case 27: a &= ~REVERSE; break;
+                case 39: a &= ~FG_MASK; break;
+                case 49: a &= ~BG_MASK; break;
                 
-                case 'J': // clear region
-                    if ( argbuf[0] > 0 ) arg = getArgument( 0 );
-                    switch ( arg )
+                case 38: // extended colors: 5;n or 2;r;g;b
+                case 48:
+                    if ( parser.getParam( i+1, 0 ) == 5 )
                     {
-                        case 1: // from beginning of screen to cursor
-                            for ( int i = bound - rows * columns; i <= cursor; i++ )
-                            {
-                                buffer[i] = 0;
-                            }
-                            break;
-                        case 2: // clear all screen
-                            cursor = bound - rows * columns;
-                            for ( int i = cursor; i < bound; i++ )
-                            {
-                                buffer[i] = 0;
-                            }
-                            break;
-                        default: // from cursor to end of screen
-                            for ( int i = cursor; i < bound; i++ )
-                            {
-                                buffer[i] = 0;
-                            }
-                            break;
+                        color = indexedColor( parser.getParam( i+2, 0 ) );
+                        i += 2;
                     }
-                    break;
-                
-                case 'K': // erase rest of line
-                    if ( argbuf[0] > 0 ) arg = getArgument( 0 );
-                    switch ( arg )
+                    else if ( parser.getParam( i+1, 0 ) == 2 )
                     {
-                        case 1: // from beginning of line to cursor
-                            buffer[cursor] = 0;
-                            for ( int i = cursor - (cursor % columns); i < cursor; i++ )
-                            {
-                                buffer[i] = 0;
-                            }
-                            break;
-                        case 2: // clear all line
-                            buffer[cursor - (cursor % columns)] = 0;
-                            for ( int i = cursor - (cursor % columns) + 1; i % columns != 0; i++ )
-                            {
-                                buffer[i] = 0;
-                            }
-                            break;
-                        default: // from cursor to end of line
-                            buffer[cursor] = 0;
-                            for ( int i = cursor+1; i % columns != 0; i++ )
-                            {
-                                buffer[i] = 0;
-                            }
-                            break;
+                        color = nearestColor( parser.getParam( i+2, 0 ), 
+                            parser.getParam( i+3, 0 ), parser.getParam( i+4, 0 ) );
+                        i += 4;
                     }
-                    break;
-                
-                case 'm': // set graphics mode
-                    int argc = getArgumentCount();
-                    for ( int i = 0; i < argc; i++ )
+                    else
                     {
-                        highlight = getArgument( i ) > 0;
+                        break;
                     }
+                    if ( p == 38 ) a = ( a & ~FG_MASK ) | ( color + 1 );
+                    else a = ( a & ~BG_MASK ) | ( ( color + 1 ) << BG_SHIFT );
                     break;
                 
-                case 'h': // set emulation option
-                    System.err.println( "h: emulation mode not supported" 
-                        + " : " + new String( argbuf, 1, argbuf[0] ) );
-                    break;
-                
-                case 'l': // unset emulation option
-                    System.err.println( "l: reset emulation mode not supported" 
-                        + " : " + new String( argbuf, 1, argbuf[0] ) );
-                    break;
-                
-                case 'p': // define keyboard mappings
-                    System.err.println( "p: keyboard mappings not supported" 
-                        + " : " + new String( argbuf, 1, argbuf[0] ) );
-                    break;
-                    
                 default:
-                    System.err.println( "unsupported command: " + (char) command 
-                        + " : " + new String( argbuf, 1, argbuf[0] ) );
-                    
+                    if ( p >= 30 && p <= 37 ) a = ( a & ~FG_MASK ) | ( p - 30 + 1 );
+                    else if ( p >= 90 && p <= 97 ) a = ( a & ~FG_MASK ) | ( p - 90 + 9 );
+                    else if ( p >= 40 && p <= 47 ) a = ( a & ~BG_MASK ) | ( ( p - 40 + 1 ) << BG_SHIFT );
+                    else if ( p >= 100 && p <= 107 ) a = ( a & ~BG_MASK ) | ( ( p - 100 + 9 ) << BG_SHIFT );
+                    // others, like blink, are ignored
             }
         }
-        catch ( Throwable t ) 
+        attr = (short) a;
+    }
+    
+    /**
+    * Maps a 256 color index to the nearest palette index.
+    */
+    private static int indexedColor( int n )
+    {
+        if ( n < 16 ) return n;
+        if ( n >= 232 ) 
         {
-            // probably a parse exception or wrong number of args
-            System.err.println( "Error in processCommand: " );
-            t.printStackTrace();
+            // gray ramp
+            int v = ( n - 232 ) * 10 + 8;
+            return nearestColor( v, v, v );
         }
+        n -= 16;
+        return nearestColor( 
+            ( n / 36 ) * 51, ( ( n / 6 ) % 6 ) * 51, ( n % 6 ) * 51 );
     }
-
+    
     /**
-    * Returns the argument at the specified index from 
-    * the argument buffer, throwing an IndexOutOfBounds
-    * if there are not enough arguments, or NumberFormatException
-    * if the individual argument is not parseable as an int.
+    * Returns the palette index closest to the specified color.
     */
-    private int getArgument( int index ) 
-        throws IndexOutOfBoundsException, NumberFormatException
+    private static int nearestColor( int r, int g, int b )
     {
-        int a = 1, b = 1; 
-        int c = argbuf[0]+1;
-        for ( int i = 0; i < index; i++ )
+        int best = 0, bestDistance = Integer.MAX_VALUE;
+        int c, dr, dg, db, d;
+        for ( int i = 0; i < PALETTE.length; i++ )
         {
-            while ( argbuf[a] != ';' )
+            c = PALETTE[i];
+            dr = ( ( c >> 16 ) & 0xff ) - r;
+            dg = ( ( c >> 8 ) & 0xff ) - g;
+            db = ( c & 0xff ) - b;
+            d = dr*dr + dg*dg + db*db;
+            if ( d < bestDistance )
             {
-                a++;
-                if ( a >= c ) throw new IndexOutOfBoundsException();
+                best = i;
+                bestDistance = d;
             }
-            a++;
         }
-        b = a+1;
-        while ( b < c && argbuf[b] != ';' )
+        return best;
+    }
+    
+    /**
+    * Executes the specified escape sequence (without a '[').
+    */
+    protected void processEscape( byte command )
+    {
+        byte received = command;
+        sequences++;
+        
+        // character set designations and the like are ignored
+        if ( parser.getIntermediate() != 0 ) command = 0;
+        
+        // start with the last screen containing the cursor
+        boolean follow = ( scrollY == calcLastVisibleScreen() );
+        
+        switch ( command )
         {
-            b++;
+            case 'D': // index
+                index();
+                break;
+            
+            case 'E': // next line
+                index();
+                cursorColumn = 0;
+                break;
+            
+            case 'M': // reverse index
+                reverseIndex();
+                break;
+
+            case '7': // save cursor position
+                saveCursor();
+                break;
+            
+            case '8': // restore cursor position
+                restoreCursor();
+                break;
+            
+            case '\\': // string terminator: nothing to do
+                break;
+            
+            default:
+                if ( parser.getIntermediate() == 0 ) unsupportedEscapes[ received & 0x7f ]++;
         }
-        return Integer.parseInt( new String( argbuf, a, b-a ) );
+        
+        ensureCapacity();
+        advanceBound( follow );
+        requestRepaint();
     }
     
-    private int getArgumentCount()
+    public void paint( Graphics g )
     {
-        if ( argbuf[0] == 0 ) return 0;
+        long start = System.currentTimeMillis();
+        paintsDone++;
+        
+        // what is drawn over the back buffer is taken along with it
+        int row, column, count, top, match, matchFrom, matchTo;
+        synchronized ( this )
+        {
+            render();
+            top = scrollY;
+            match = ( matchLine >= 0 ) ? matchLine - discarded - top : -1;
+            matchFrom = matchColumn;
+            matchTo = matchColumn + ( ( matchText != null ) ? matchText.length() : 0 );
+            row = cursorRow;
+            column = cursorColumn;
+            count = predictionCount;
+            if ( count > 0 )
+            {
+                row = predictedLine - discarded;
+                column = predictedColumn;
+                System.arraycopy( predicted, 0, paintedPredictions, 0, count );
+            }
+        }
+        g.drawImage( backBuffer, 0, 0, g.TOP | g.LEFT );
+        
+        // predicted echo is drawn on top, the cursor after it
+        if ( count > 0 )
+        {
+            paintPredictions( g, row - top, column, count );
+            column += count;
+        }
+        
+        // the last match found is outlined
+        if ( match >= 0 && match < rows )
+        {
+            g.setColor( PALETTE[11] ); // bright yellow
+            g.drawRect( insetX + ( matchFrom - scrollX )*fontWidth, insetY + match*fontHeight,
+                ( matchTo - matchFrom )*fontWidth - 1, fontHeight - 1 );
+        }
         
-        int result = 1;
-        for ( int i = 1; i < argbuf[0]; i++ )
+        // cursor is drawn on top, if it falls within the clip
+        int x = insetX + ( column - scrollX )*fontWidth;
+        int y = insetY + ( row - top )*fontHeight;
+        if ( x < g.getClipX() + g.getClipWidth() && x + fontWidth > g.getClipX()
+            && y < g.getClipY() + g.getClipHeight() && y + fontHeight > g.getClipY() )
         {
-            if ( argbuf[i] == ';' ) result++;
+            // kept inside the cell so that repainting 
+            // the cell alone erases it
+            g.setColor( DEFAULT_FG );
+            g.drawRect( x, y, fontWidth - 1, fontHeight - 1 );
         }
-        return result;
+        
+        if ( showStats ) paintStats( g );
+        
+        long end = System.currentTimeMillis();
+        int time = (int) ( end - start );
+        paintTime += time;
+        if ( time > maxPaintTime ) maxPaintTime = time;
+        if ( startTime < 0 ) startTime = (int) ( end - createdAt );
     }
     
-    public void paint( Graphics g )
+    /**
+    * Draws count predicted characters from the specified screen
+    * row and column, underlined to tell them from the host's
+    * output.
+    */
+    private void paintPredictions( Graphics g, int row, int column, int count )
     {
-        // clear screen
-        g.setGrayScale( 0 ); // black
-        g.fillRect( 0, 0, getWidth(), getHeight() );
+        int x = insetX + ( column - scrollX )*fontWidth;
+        int y = insetY + row*fontHeight;
+        g.setColor( DEFAULT_BG );
+        g.fillRect( x, y, count*fontWidth, fontHeight );
+        
+        for ( int i = 0; i < count; i++ ) rowChars[i] = (char) paintedPredictions[i];
+        g.setColor( DEFAULT_FG );
+        styledFont( Font.STYLE_UNDERLINED ).drawChars( g, rowChars, 0, count, 
+            x, y, g.TOP | g.LEFT );
+    }
     
-        // draw content from buffer
-        g.setGrayScale( 255 ); // white
+    /**
+    * Draws the statistics at the bottom of the screen, word
+    * wrapped, white on blue.  They are drawn straight to the
+    * screen, over the back buffer's contents.
+    */
+    private void paintStats( Graphics g )
+    {
+        String stats = getStats();
+        int count = 0, start = 0, end, space;
+        int[] breaks = new int[ stats.length() ]; // line ends
+        while ( start < stats.length() )
+        {
+            end = Math.min( stats.length(), start + columns );
+            space = stats.lastIndexOf( ' ', end );
+            if ( end < stats.length() && space > start ) end = space;
+            breaks[ count++ ] = end;
+            start = end + 1;
+        }
         
-        // before: g.setFont( font );
+        statsTop = getHeight() - count*fontHeight;
+        g.setColor( PALETTE[4] );
+        g.fillRect( 0, statsTop, getWidth(), count*fontHeight );
+        g.setColor( DEFAULT_FG );
+        start = 0;
+        for ( int i = 0; i < count; i++ )
+        {
+            font.drawSubstring( g, stats, start, breaks[i] - start, 
+                0, statsTop + i*fontHeight, g.TOP | g.LEFT );
+            start = breaks[i] + 1;
+        }
+    }
+    
+    /**
+    * Brings the back buffer up to date: moves the pixels of
+    * scrolled rows, then renders the dirty cells.  Done with
+    * the lock held, so that the buffer always shows the screen
+    * as some whole number of batches left it, never a batch
+    * half parsed.
+    */
+    private synchronized void render()
+    {
+        Graphics g = back;
+        int count, y;
+        short[] swap;
         
-        int i;
-        byte b;
+        followView();
+        if ( renderedGeneration == generation ) return; // up to date
+        renderedGeneration = generation;
         
-        for ( int y = 0; y < rows; y++ )
+        // take the pending work, leaving fresh spans for new damage
+        swap = renderFrom;
+        renderFrom = dirtyFrom;
+        dirtyFrom = swap;
+        swap = renderTo;
+        renderTo = dirtyTo;
+        dirtyTo = swap;
+        for ( y = 0; y < rows; y++ )
         {
-            for ( int x = 0; x < columns; x++ )
+            dirtyFrom[y] = columns;
+            dirtyTo[y] = 0;
+        }
+        if ( dirtyAll )
+        {
+            for ( y = 0; y < rows; y++ )
             {
-                i = (y+scrollY)*columns+(x+scrollX);
-                if ( i < buffer.length )
-                {
-                    b = buffer[i];
-                    if ( b != 0 )
-                    {
-                        font.drawChar( g, (char) b, 
-                        insetX + x*fontWidth, insetY + y*fontHeight, 
-                        g.TOP | g.LEFT );
-                    }
-                    if ( cursor == i )
-                    {
-                        g.drawRect( 
-                            insetX + x*fontWidth, insetY + y*fontHeight,
-                            fontWidth, fontHeight );
-                    }
-                }
+                renderFrom[y] = 0;
+                renderTo[y] = columns;
+            }
+            g.setGrayScale( 0 ); // black, margins included
+            g.fillRect( 0, 0, backBuffer.getWidth(), backBuffer.getHeight() );
+        }
+        dirtyAll = false;
+        System.arraycopy( blits, 0, renderBlits, 0, blitCount*3 );
+        count = blitCount;
+        blitCount = 0;
+        
+        int top, bottom, n;
+        for ( int i = 0; i < count; i++ )
+        {
+            top = renderBlits[ i*3 ];
+            bottom = renderBlits[ i*3 + 1 ];
+            n = renderBlits[ i*3 + 2 ];
+            if ( n > 0 )
+            {
+                g.copyArea( insetX, insetY + top*fontHeight, 
+                    columns*fontWidth, ( bottom - top + 1 - n )*fontHeight,
+                    insetX, insetY + ( top + n )*fontHeight, g.TOP | g.LEFT );
+            }
+            else
+            {
+                g.copyArea( insetX, insetY + ( top - n )*fontHeight, 
+                    columns*fontWidth, ( bottom - top + 1 + n )*fontHeight,
+                    insetX, insetY + top*fontHeight, g.TOP | g.LEFT );
+            }
+        }
+        
+        byte[] l, h;
+        short[] a;
+        int slot, held, start, x, x1;
+        short runAttr;
+        
+        for ( y = 0; y < rows; y++ )
+        {
+            if ( renderFrom[y] >= renderTo[y] ) continue;
+            x = renderFrom[y];
+            x1 = renderTo[y];
+            
+            // clear the span
+            g.setGrayScale( 0 ); // black
+            g.fillRect( insetX + x*fontWidth, insetY + y*fontHeight, 
+                ( x1 - x )*fontWidth, fontHeight );
+            
+            if ( y+scrollY >= capacity ) continue;
+            if ( y+scrollY < 0 )
+            {
+                // paged in from the archive
+                held = ( archive != null ) ? archive.getLine( discarded + y+scrollY, 
+                    archivedLine, archivedAttrs, archivedHighs ) : -1;
+                if ( held < 0 ) continue;
+                l = archivedLine;
+                a = ( ( held & ScrollbackArchive.ATTRS ) != 0 ) ? archivedAttrs : null;
+                h = ( ( held & ScrollbackArchive.HIGHS ) != 0 ) ? archivedHighs : null;
+            }
+            else
+            {
+                slot = ( origin + y+scrollY ) % capacity;
+                l = lines[slot];
+                a = attrs[slot];
+                h = ( highs != null ) ? highs[slot] : null;
+                if ( l == null && a == null ) continue;
+            }
+            
+            // draw each run of cells sharing an attribute
+            while ( x < x1 )
+            {
+                start = x;
+                runAttr = ( a != null ) ? a[x+scrollX] : 0;
+                while ( x < x1 && ( a == null || a[x+scrollX] == runAttr ) ) x++;
+                drawRun( g, l, h, start, x, y, runAttr );
+            }
+        }
+    }
+
+    /**
+    * Draws the cells from (inclusive) to (exclusive) of a row,
+    * which all have the specified attribute: the background if
+    * it is not the default, then each run of written cells with
+    * one call.  Empty cells are skipped.  The high bytes of 
+    * the cells, h, may be null.
+    */
+    private void drawRun( Graphics g, byte[] l, byte[] h, int from, int to, int y, short runAttr )
+    {
+        int fg = runAttr & FG_MASK;
+        int bg = ( runAttr & BG_MASK ) >> BG_SHIFT;
+        
+        // bold also brightens the first eight colors
+        if ( ( runAttr & BOLD ) != 0 && fg > 0 && fg <= 8 ) fg += 8;
+        
+        int fgColor = ( fg == 0 ) ? DEFAULT_FG : PALETTE[fg-1];
+        int bgColor = ( bg == 0 ) ? DEFAULT_BG : PALETTE[bg-1];
+        if ( ( runAttr & REVERSE ) != 0 )
+        {
+            int swap = fgColor;
+            fgColor = bgColor;
+            bgColor = swap;
+        }
+        
+        if ( bgColor != DEFAULT_BG )
+        {
+            g.setColor( bgColor );
+            g.fillRect( insetX + from*fontWidth, insetY + y*fontHeight, 
+                ( to - from )*fontWidth, fontHeight );
+        }
+        if ( l == null ) return;
+        
+        int style = Font.STYLE_PLAIN;
+        if ( ( runAttr & BOLD ) != 0 ) style |= Font.STYLE_BOLD;
+        if ( ( runAttr & UNDERLINE ) != 0 ) style |= Font.STYLE_UNDERLINED;
+        CustomFont f = styledFont( style );
+        g.setColor( fgColor );
+        
+        char[] chars = rowChars;
+        int start, x = from;
+        int c;
+        while ( x < to )
+        {
+            while ( x < to && l[x+scrollX] == 0 && ( h == null || h[x+scrollX] == 0 ) ) x++;
+            start = x;
+            while ( x < to ) 
+            {
+                c = l[x+scrollX] & 0xff;
+                if ( h != null ) c |= ( h[x+scrollX] & 0xff ) << 8;
+                if ( c == 0 ) break;
+                chars[x++] = (char) c;
+            }
+            if ( x > start )
+            {
+                f.drawChars( g, chars, start, x - start, 
+                    insetX + start*fontWidth, insetY + y*fontHeight, 
+                    g.TOP | g.LEFT );
             }
         }
     }
     
-    public void keyPressed( int keyCode )
+    /**
+    * Returns the font for the specified Font style bits,
+    * deriving it on first use.
+    */
+    private CustomFont styledFont( int style )
     {
-        switch ( getGameAction( keyCode ) )
+        CustomFont f = styledFonts[style];
+        if ( f == null )
         {
-            case LEFT:
-                // move cursor left one column
-                move[2] = 'D';
-                send( move );
-                break;
-            case RIGHT:
-                // move cursor right one column
-                move[2] = 'C';
-                send( move );
-                break;
-            case DOWN:
-                if ( scrolling )
-                {
-                    // scroll down one row
-                    scrollY++;
-                    if ( scrollY > calcLastVisibleScreen() )
-                    {
-                        scrollY = calcLastVisibleScreen();
-                    }
-                    repaint();
-                }
-                else 
-                {
-                    // move cursor down one row
-                    move[2] = 'B';
-                    send( move );
-                }
-                break;
-            case UP:
-                if ( scrolling )
-                {
-                    // scroll up one row
-                    scrollY--;
-                    if ( scrollY < 0 ) scrollY = 0;
-                    repaint();
-                }
-                else 
+            f = font.deriveFont( style );
+            styledFonts[style] = f;
+        }
+        return f;
+    }
+    
+    /**
+    * Looks for the specified text, ignoring case, upwards from 
+    * the line above the last match, or from the bottom if there
+    * is none or it was for other text.  A match is scrolled into
+    * view and outlined, with scroll-lock turned on so that the 
+    * view stays there.  Returns false, and starts from the bottom
+    * next time, if there are no more matches.
+    *
+    * Lines in the archive are not indexed, and are read one by one
+    * once the scrollback has been searched.
+    */
+    public synchronized boolean find( String text )
+    {
+        int n = text.length();
+        if ( n == 0 || n > columns ) return false;
+        int[] q = new int[n];
+        for ( int i = 0; i < n; i++ ) q[i] = fold( text.charAt( i ) );
+        int[] trigrams = new int[ Math.max( 0, n - 2 ) ];
+        for ( int i = 0; i < trigrams.length; i++ ) trigrams[i] = trigram( q[i], q[i+1], q[i+2] );
+        
+        // index the lines scrolled off since the last search
+        if ( indexedLines < discarded )
+        {
+            // those in between are gone: start the block over
+            indexedLines = discarded;
+            int offset = ( indexedLines / INDEX_BLOCK ) % indexBlocks * indexWords;
+            for ( int i = 0; i < indexWords; i++ ) index[ offset + i ] = 0;
+        }
+        while ( indexedLines < discarded + lineCount - rows ) indexLine( indexedLines++ );
+        
+        int line = discarded + lineCount - 1;
+        if ( matchLine >= 0 && text.equals( matchText ) ) line = matchLine - 1;
+        damageMatch();
+        matchLine = -1;
+        matchText = text;
+        
+        int column, first = discarded + firstRow();
+        while ( line >= first )
+        {
+            if ( line >= discarded && line < indexedLines && !mayContain( line / INDEX_BLOCK, trigrams ) )
+            {
+                // none of the block's lines can match, but those
+                // already archived may not have been indexed
+                line = Math.max( line - line % INDEX_BLOCK - 1, discarded - 1 );
+                continue;
+            }
+            column = findInLine( line, q );
+            if ( column >= 0 )
+            {
+                matchLine = line;
+                matchColumn = column;
+                scrolling = true;
+                int row = line - discarded;
+                if ( row < scrollY || row >= scrollY + rows )
                 {
-                    // move cursor down one row
-                    move[2] = 'A';
-                    send( move );
+                    scrollY = Math.max( firstRow(), Math.min( row - rows/2, calcLastVisibleScreen() ) );
                 }
-                break;
-            case FIRE:
-                // send a line feed:
-                send( (byte) '\n' );
-                break;
-	}
-
-	switch ( keyCode ) {
-	    case Canvas.KEY_NUM1: // Zane
-		send( (byte) '\r' );
-		break;
-	    case Canvas.KEY_NUM7: // Zane
-		send( (byte) 0x08 ); // back space
-		break;
-            case Canvas.KEY_NUM3: // Zane
-                byte[] pageUp = new byte[] { 27, '[', '5', '~' };
-		send ( pageUp );
-		break;
-            case Canvas.KEY_NUM9: // Zane
-                byte[] pageDown = new byte[] { 27, '[', '6', '~' };
-		send ( pageDown );
-		break;
-            case Canvas.KEY_NUM0: // Zane
-		send ( (byte) ' ' );
-		break;
+                damageMatch();
+                requestRepaint();
+                return true;
+            }
+            line--;
+        }
+        requestRepaint();
+        return false;
+    }
+    
+    /**
+    * Returns the first column from which the specified line
+    * holds the specified folded characters, or -1.
+    */
+    private int findInLine( int line, int[] q )
+    {
+        byte[] l, h;
+        if ( line < discarded )
+        {
+            int held = archive.getLine( line, archivedLine, archivedAttrs, archivedHighs );
+            if ( held < 0 ) return -1;
+            l = archivedLine;
+            h = ( ( held & ScrollbackArchive.HIGHS ) != 0 ) ? archivedHighs : null;
+        }
+        else
+        {
+            int slot = ( origin + line - discarded ) % capacity;
+            l = lines[slot];
+            if ( l == null ) return -1;
+            h = ( highs != null ) ? highs[slot] : null;
+        }
+        int i;
+        for ( int x = 0; x + q.length <= columns; x++ )
+        {
+            for ( i = 0; i < q.length && cell( l, h, x + i ) == q[i]; i++ );
+            if ( i == q.length ) return x;
+        }
+        return -1;
+    }
+    
+    /**
+    * Adds the trigrams of the specified line to its block's 
+    * bitmap, starting the bitmap over on the block's first line.
+    */
+    private void indexLine( int line )
+    {
+        int offset = ( line / INDEX_BLOCK ) % indexBlocks * indexWords;
+        if ( line % INDEX_BLOCK == 0 )
+        {
+            for ( int i = 0; i < indexWords; i++ ) index[ offset + i ] = 0;
+        }
+        
+        int slot = ( origin + line - discarded ) % capacity;
+        byte[] l = lines[slot];
+        if ( l == null ) return;
+        byte[] h = ( highs != null ) ? highs[slot] : null;
+        
+        // blanks after the last written cell all look alike:
+        // take two of them, and three for any run of blanks
+        int end = columns;
+        while ( end > 0 && l[end-1] == 0 && ( h == null || h[end-1] == 0 ) ) end--;
+        int t = trigram( ' ', ' ', ' ' );
+        index[ offset + ( t >>> 5 ) ] |= 1 << ( t & 31 );
+        end = Math.min( columns, end + 2 );
+        
+        int a = 0, b = 0, c;
+        for ( int x = 0; x < end; x++ )
+        {
+            c = cell( l, h, x );
+            if ( x >= 2 )
+            {
+                t = trigram( a, b, c );
+                index[ offset + ( t >>> 5 ) ] |= 1 << ( t & 31 );
+            }
+            a = b;
+            b = c;
+        }
+    }
+    
+    /**
+    * Returns whether the specified block's bitmap holds
+    * all of the specified trigrams.
+    */
+    private boolean mayContain( int block, int[] trigrams )
+    {
+        int offset = block % indexBlocks * indexWords;
+        int t;
+        for ( int i = 0; i < trigrams.length; i++ )
+        {
+            t = trigrams[i];
+            if ( ( index[ offset + ( t >>> 5 ) ] & ( 1 << ( t & 31 ) ) ) == 0 ) return false;
+        }
+        return true;
+    }
+    
+    /**
+    * Returns the bit of a block's bitmap for the specified
+    * folded characters.
+    */
+    private int trigram( int a, int b, int c )
+    {
+        return ( ( a * 31 + b ) * 31 + c ) * 0x9e3779b1 >>> indexShift;
+    }
+    
+    /**
+    * Returns the character of the specified cell as searched
+    * for: in lower case if Latin-1, and a space if empty.
+    */
+    private static int cell( byte[] l, byte[] h, int x )
+    {
+        int c = l[x] & 0xff;
+        if ( h != null ) c |= ( h[x] & 0xff ) << 8;
+        return ( c == 0 ) ? ' ' : fold( c );
+    }
+    
+    private static int fold( int c )
+    {
+        if ( ( c >= 'A' && c <= 'Z' ) || ( c >= 0xc0 && c <= 0xde && c != 0xd7 ) ) 
+        {
+            return c + ( 'a' - 'A' );
         }
+        return c;
+    }
+    
+    /**
+    * Marks the last match's cells for repainting, 
+    * to draw or erase its outline.
+    */
+    private void damageMatch()
+    {
+        if ( matchLine < 0 ) return;
+        int start = ( matchLine - discarded ) * columns + matchColumn;
+        damage( start, start + matchText.length() );
+    }
+    
+    /**
+    * Scrolls the view down by the specified number of rows,
+    * or up if negative, within the scrollback.
+    */
+    private synchronized void scrollView( int count )
+    {
+        scrollY = Math.max( firstRow(), Math.min( scrollY + count, calcLastVisibleScreen() ) );
+        requestRepaint();
+    }
+    
+    /**
+    * Returns the keymap, which sets what each key sends.
+    */
+    public Keymap getKeymap()
+    {
+        return keymap;
+    }
+    
+    public void keyPressed( int keyCode )
+    {
+        key( keyCode, getGameAction( keyCode ), 1 );
     }
 
     public void keyRepeated( int keyCode )
     {
-        switch ( getGameAction( keyCode ) )
+        int action = getGameAction( keyCode );
+        if ( action != FIRE ) key( keyCode, action, rows/2 );
+    }
+    
+    /**
+    * Sends what the keymap has for the specified key, or while
+    * scrolling, scrolls the view by the specified number of rows
+    * for up and down.
+    */
+    private void key( int keyCode, int action, int scrollRows )
+    {
+        if ( scrolling && ( action == UP || action == DOWN ) )
         {
-            case LEFT:
-                // move cursor left one column
-                move[2] = 'D';
-                //receive( move );
-                send( move );
-                repaint();
-                break;
-            case RIGHT:
-                // move cursor right one column
-                move[2] = 'C';
-                //receive( move );
-                send( move );
-                repaint();
-                break;
-            case DOWN:
-                if ( scrolling )
-                {
-                    // scroll down by half a screen
-                    scrollY += rows/2;
-                    if ( scrollY > calcLastVisibleScreen() )
-                    {
-                        scrollY = calcLastVisibleScreen();
-                    }
-                }
-                else 
-                {
-                    // move cursor down one row
-                    move[2] = 'B';
-                    //receive( move );
-                    send( move );
-                }
-                repaint();
-                break;
-            case UP:
-                if ( scrolling )
-                {
-                    // scroll up by half a screen
-                    scrollY -= rows/2;
-                    if ( scrollY < 0 ) scrollY = 0;
-                }
-                else 
-                {
-                    // move cursor down one row
-                    move[2] = 'A';
-                    //receive( move );
-                    send( move );
-                }
-                repaint();
-                break;
-	}
-
-	switch ( keyCode ) {
-	    case Canvas.KEY_NUM1: // Zane
-		send( (byte) '\r' );
-		break;
-	    case Canvas.KEY_NUM7: // Zane
-		send( (byte) 0x08 ); // back space
-		break;
-            case Canvas.KEY_NUM3: // Zane
-                byte[] pageUp = new byte[] { 27, '[', '5', '~' };
-		send ( pageUp );
-		break;
-            case Canvas.KEY_NUM9: // Zane
-                byte[] pageDown = new byte[] { 27, '[', '6', '~' };
-		send ( pageDown );
-		break;
-            case Canvas.KEY_NUM0: // Zane
-		send ( (byte) ' ' );
-		break;
+            scrollView( ( action == UP ) ? -scrollRows : scrollRows );
+            return;
         }
+        byte[] sequence = keymap.get( keyCode, action, 
+            applicationKeys ? Keymap.APPLICATION : Keymap.NORMAL );
+        if ( sequence != null ) send( sequence );
     }
     
     /**
@@ -858,7 +2360,16 @@ public class TelnetCanvas extends Canvas
     */
     private int calcLastVisibleScreen()
     {
-        return Math.max( 0, bound / columns - rows );
+        return lineCount - rows;
+    }
+    
+    /**
+    * Returns the row of the oldest line held, negative 
+    * if the archive holds any.
+    */
+    private int firstRow()
+    {
+        return ( archive != null ) ? archive.getFirst() - discarded : 0;
     }
     
 }
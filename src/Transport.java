@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+* A connection to the host, opened by URL.  The scheme picks
+* the backend:
+*
+* btspp://address:channel (or anything else the Connector opens,
+* such as socket://host:port) connects as usual; loopback: echoes
+* everything written back to the reader, in process; replay:/name
+* plays a recorded stream from the named resource.
+*
+* Each backend starts with read and write sizes suited to it,
+* which can be changed before the streams are used.
+*/
+public abstract class Transport
+{
+    protected InputStream input;
+    protected OutputStream output;
+    private int readChunk = 512;
+    private int writeBuffer = OutputWriter.DEFAULT_BUFFER;
+
+    /**
+    * Opens a transport for the specified URL.
+    */
+    public static Transport open( String url ) throws IOException
+    {
+        if ( url == null ) throw new IOException( "No address" );
+        if ( url.startsWith( "loopback:" ) ) return new LoopbackTransport();
+        if ( url.startsWith( "replay:" ) ) return new ReplayTransport( url.substring( 7 ) );
+        return new StreamTransport( url );
+    }
+
+    /**
+    * Returns the most bytes read() returns at once.
+    */
+    public int getReadChunk()
+    {
+        return readChunk;
+    }
+
+    public void setReadChunk( int size )
+    {
+        readChunk = Math.max( 1, size );
+    }
+
+    /**
+    * Returns the size for the buffer of bytes bound for
+    * the host, as passed to the OutputWriter.
+    */
+    public int getWriteBuffer()
+    {
+        return writeBuffer;
+    }
+
+    public void setWriteBuffer( int size )
+    {
+        writeBuffer = Math.max( 1, size );
+    }
+
+    /**
+    * Decompresses everything read from now on, as deflated
+    * by host/deflate-relay.py.
+    */
+    public void inflate()
+    {
+        input = new InflateInputStream( input );
+    }
+
+    public InputStream getInputStream()
+    {
+        return input;
+    }
+
+    public OutputStream getOutputStream()
+    {
+        return output;
+    }
+
+    /**
+    * Waits for at least one byte, then takes whatever else
+    * has already arrived, up to the read chunk size or the
+    * length of the buffer.  Returns the number of bytes read,
+    * or -1 at the end of the stream.
+    */
+    public int read( byte[] buffer ) throws IOException
+    {
+        int c = input.read();
+        if ( c == -1 ) return -1;
+        buffer[0] = (byte) c;
+
+        int n = Math.min( input.available(), Math.min( readChunk, buffer.length ) - 1 );
+        if ( n > 0 && ( n = input.read( buffer, 1, n ) ) > 0 ) return n + 1;
+        return 1;
+    }
+
+    /**
+    * Closes the connection, ending any read in progress.
+    */
+    public abstract void close() throws IOException;
+}
@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+* Reads back the output in a ttyrec recording, as written by
+* SessionRecorder or ttyrec: frames of a header of three little
+* endian ints, seconds, microseconds and length, followed by that
+* many bytes of output.  Only the output is returned, and at most
+* one frame of it per read, so that it arrives in the batches it
+* was recorded in.
+*
+* Played in real time, each frame is held back until as long
+* after the first one as it was when recorded; otherwise frames
+* are returned as fast as they are read.
+*/
+public class TtyrecInputStream extends InputStream
+{
+    private static final int HEADER = 12;
+
+    private InputStream input;
+    private boolean realTime;
+    private byte[] header = new byte[ HEADER ];
+    private int remaining; // bytes left of the current frame
+    private long firstFrame = -1; // when the first frame was recorded, in milliseconds
+    private long started; // when it was read
+
+    public TtyrecInputStream( InputStream input, boolean realTime )
+    {
+        this.input = input;
+        this.realTime = realTime;
+    }
+
+    public int read() throws IOException
+    {
+        if ( !nextFrame() ) return -1;
+        int b = input.read();
+        if ( b != -1 ) remaining--;
+        return b;
+    }
+
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+        if ( len == 0 ) return 0;
+        if ( !nextFrame() ) return -1;
+        int n = input.read( b, off, Math.min( len, remaining ) );
+        if ( n > 0 ) remaining -= n;
+        return n;
+    }
+
+    /**
+    * Returns what is left of the current frame, as far as
+    * it can be read without blocking.
+    */
+    public int available() throws IOException
+    {
+        return Math.min( remaining, input.available() );
+    }
+
+    public void close() throws IOException
+    {
+        input.close();
+    }
+
+    /**
+    * Reads the next frame's header once the current frame is
+    * done, waiting for the frame's time if played in real time.
+    * Returns false at the end of the recording.
+    */
+    private boolean nextFrame() throws IOException
+    {
+        int n, got;
+        while ( remaining == 0 )
+        {
+            for ( n = 0; n < HEADER; n += got )
+            {
+                got = input.read( header, n, HEADER - n );
+                if ( got == -1 ) return false; // a partial header ends it too
+            }
+            long time = ( getInt( 0 ) & 0xffffffffL ) * 1000 + getInt( 4 ) / 1000;
+            remaining = getInt( 8 );
+            if ( remaining < 0 ) throw new IOException( "Bad recording" );
+            if ( firstFrame < 0 )
+            {
+                firstFrame = time;
+                started = System.currentTimeMillis();
+            }
+            else if ( realTime )
+            {
+                long wait = started + ( time - firstFrame ) - System.currentTimeMillis();
+                try
+                {
+                    if ( wait > 0 ) Thread.sleep( wait );
+                }
+                catch ( InterruptedException exc )
+                {
+                    throw new IOException( "Interrupted" );
+                }
+            }
+        }
+        return true;
+    }
+
+    private int getInt( int i )
+    {
+        return ( header[i] & 0xff ) | ( header[ i + 1 ] & 0xff ) << 8
+            | ( header[ i + 2 ] & 0xff ) << 16 | ( header[ i + 3 ] & 0xff ) << 24;
+    }
+}
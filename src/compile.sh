@@ -1,6 +1,6 @@
 echo Compiling...
 mkdir -p output &&
-javac -target 1.4 -source 1.4 -bootclasspath /opt/wtk/lib/cldcapi11.jar:/opt/wtk/lib/midpapi20.jar BlueTerm.java TelnetCanvas.java CustomFont.java &&
-preverify -classpath /opt/wtk/lib/cldcapi11.jar:/opt/wtk/lib/midpapi20.jar BlueTerm TelnetCanvas CustomFont &&
-cd output && jar cvfm BlueTerm.jar Manifest.mf BlueTerm.class TelnetCanvas.class CustomFont.class font.png icon.png &&
+javac -target 1.4 -source 1.4 -bootclasspath /opt/wtk/lib/cldcapi11.jar:/opt/wtk/lib/midpapi20.jar BlueTerm.java TelnetCanvas.java CustomFont.java AnsiParser.java OutputWriter.java InflateInputStream.java Transport.java StreamTransport.java LoopbackTransport.java ReplayTransport.java InputQueue.java ScrollbackArchive.java SessionRecorder.java TtyrecInputStream.java Keymap.java &&
+preverify -classpath /opt/wtk/lib/cldcapi11.jar:/opt/wtk/lib/midpapi20.jar BlueTerm TelnetCanvas 'TelnetCanvas$RepaintTask' 'TelnetCanvas$EchoTimeout' CustomFont AnsiParser OutputWriter InflateInputStream Transport StreamTransport LoopbackTransport 'LoopbackTransport$Input' 'LoopbackTransport$Output' ReplayTransport 'ReplayTransport$Sink' 'ReplayTransport$RecordInput' InputQueue ScrollbackArchive SessionRecorder TtyrecInputStream Keymap &&
+cd output && jar cvfm BlueTerm.jar Manifest.mf BlueTerm.class TelnetCanvas.class 'TelnetCanvas$RepaintTask.class' 'TelnetCanvas$EchoTimeout.class' CustomFont.class AnsiParser.class OutputWriter.class InflateInputStream.class Transport.class StreamTransport.class LoopbackTransport.class 'LoopbackTransport$Input.class' 'LoopbackTransport$Output.class' ReplayTransport.class 'ReplayTransport$Sink.class' 'ReplayTransport$RecordInput.class' InputQueue.class ScrollbackArchive.class SessionRecorder.class TtyrecInputStream.class Keymap.class font.png font-1.png font-43.png font-4a.png font-4b.png font.bin font-1.bin font-43.bin font-4a.bin font-4b.bin icon.png &&
 echo OK.
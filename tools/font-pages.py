@@ -0,0 +1,359 @@
+#!/usr/bin/env python3
+"""Draws glyph pages for BlueTerm's font, in the cell size of the
+base font: Latin-1 (U+0080 to U+00FF, page 01), arrows (U+2180 to
+U+21FF, page 43), box drawing (U+2500 to U+257F, page 4a) and
+block elements with a few geometric shapes (U+2580 to U+25FF,
+page 4b).
+
+    font-pages.py src/font.png
+
+Each page is written next to the font as font-<page>.png, 128
+cells wide like the font itself.  Accented letters are the base
+font's letters with a mark drawn above or below, capitals losing
+a row to make room; the other Latin-1 signs are drawn from the
+bitmaps here.  The other shapes are worked out from the Unicode
+character names.  Cells with no rule here get the font's '?'
+glyph.
+"""
+
+import os
+import struct
+import sys
+import unicodedata
+import zlib
+
+PAGES = (0x01, 0x43, 0x4a, 0x4b)
+SHAPES = {
+    0x25a0: "square", 0x25a1: "box", 0x25aa: "small square",
+    0x25b2: "up", 0x25b6: "right", 0x25bc: "down", 0x25c0: "left",
+    0x25c6: "diamond", 0x25cb: "ring", 0x25cf: "disc",
+}
+
+# marks over a letter, in the two rows above the x-height, or
+# under it for the cedilla; four columns like the letters
+MARKS = {
+    0x0300: (0, ".#..", "..#."),  # grave
+    0x0301: (0, "..#.", ".#.."),  # acute
+    0x0302: (0, ".##.", "#..#"),  # circumflex
+    0x0303: (0, ".#.#", "#.#."),  # tilde
+    0x0308: (0, "#..#", "...."),  # diaeresis
+    0x030a: (0, ".##.", "...."),  # ring
+    0x0327: (7, "..#.", ".##."),  # cedilla
+}
+X_HEIGHT = 2  # top row of a, e, o
+
+# Latin-1 signs that are not accented letters, as rows from the top
+SIGNS = {
+    0xa0: [],
+    0xa1: ["", "", "..#..", "", "..#..", "..#..", "..#..", "..#.."],
+    0xa2: ["", "..#..", ".###.", "#.#..", "#.#..", "#.#..", ".###.", "..#.."],
+    0xa3: ["", "..##.", ".#...", ".#...", "###..", ".#...", "####."],
+    0xa4: ["", "", "#...#", ".###.", ".#.#.", ".###.", "#...#"],
+    0xa5: ["", "#...#", ".#.#.", ".###.", "..#..", ".###.", "..#.."],
+    0xa6: ["", "..#..", "..#..", "..#..", "", "..#..", "..#..", "..#.."],
+    0xa7: [".###.", "#....", ".##..", "#..#.", ".##..", "...#.", "###.."],
+    0xa8: ["#..#."],
+    0xa9: ["", "", ".###.", "#...#", "#.#.#", "#...#", ".###."],
+    0xaa: [".##..", "#.#..", ".##..", "", "###.."],
+    0xab: ["", "", "", ".#.#.", "#.#..", ".#.#."],
+    0xac: ["", "", "", "####.", "...#."],
+    0xad: ["", "", "", "", ".###."],
+    0xae: ["", "", ".###.", "#.#.#", "#.#.#", "#...#", ".###."],
+    0xaf: ["####."],
+    0xb0: [".#...", "#.#..", ".#..."],
+    0xb1: ["", "", "..#..", ".###.", "..#..", "", ".###."],
+    0xb2: ["##...", "..#..", ".#...", "###.."],
+    0xb3: ["##...", ".##..", "..#..", "##..."],
+    0xb4: ["..#..", ".#..."],
+    0xb5: ["", "", "#..#.", "#..#.", "#..#.", "#.##.", "###.#", "#....", "#...."],
+    0xb6: ["", ".####", "###.#", "###.#", ".##.#", "..#.#", "..#.#"],
+    0xb7: ["", "", "", "", "..#.."],
+    0xb8: ["", "", "", "", "", "", "", "..#..", ".##.."],
+    0xb9: [".#...", "##...", ".#...", "###.."],
+    0xba: [".#...", "#.#..", ".#...", "", "###.."],
+    0xbb: ["", "", "", "#.#..", ".#.#.", "#.#.."],
+    0xbf: ["", "", "..#..", "", "..#..", ".#...", "#..#.", ".##.."],
+    0xc6: ["", ".####", "#.#..", "#.###", "###..", "#.#..", "#.###"],
+    0xd0: ["", ".###.", ".#..#", "###.#", ".#..#", ".#..#", ".###."],
+    0xd7: ["", "", "", "#..#.", ".##..", ".##..", "#..#."],
+    0xd8: ["", ".####", "#..#.", "#.##.", "##.#.", "#..#.", "###.."],
+    0xde: ["", "#....", "###..", "#..#.", "#..#.", "###..", "#...."],
+    0xdf: ["", ".##..", "#..#.", "#.#..", "#..#.", "#..#.", "#.##.", "#...."],
+    0xe6: ["", "", ".###.", "...##", ".####", "#.#..", ".####"],
+    0xf0: ["", ".#.#.", "..#..", ".###.", "#..#.", "#..#.", ".##.."],
+    0xf7: ["", "", "..#..", "", ".###.", "", "..#.."],
+    0xf8: ["", "", ".###.", "#.##.", "##.#.", "#..#.", "###.."],
+    0xfe: ["", "#....", "#....", "###..", "#..#.", "#..#.", "###..", "#....", "#...."],
+}
+
+# unit steps for the arrow directions, by the words naming them
+ARROWS = [
+    ("LEFT RIGHT", ((-1, 0), (1, 0))), ("UP DOWN", ((0, -1), (0, 1))),
+    ("NORTH WEST", ((-1, -1),)), ("NORTH EAST", ((1, -1),)),
+    ("SOUTH EAST", ((1, 1),)), ("SOUTH WEST", ((-1, 1),)),
+    ("LEFTWARDS", ((-1, 0),)), ("RIGHTWARDS", ((1, 0),)),
+    ("UPWARDS", ((0, -1),)), ("DOWNWARDS", ((0, 1),)),
+]
+
+
+def read_png(path):
+    """Returns width, height and rows of palette indices of an
+    8 bit palette png without filtering, as font.png is."""
+    data = open(path, "rb").read()
+    pos, idat = 8, b""
+    while pos < len(data):
+        length, kind = struct.unpack(">I4s", data[pos:pos + 8])
+        chunk = data[pos + 8:pos + 8 + length]
+        if kind == b"IHDR":
+            width, height, depth, colour = struct.unpack(">IIBB", chunk[:10])
+            if (depth, colour) != (8, 3):
+                sys.exit("expected an 8 bit palette png")
+        elif kind == b"IDAT":
+            idat += chunk
+        pos += 12 + length
+    raw = zlib.decompress(idat)
+    rows = []
+    for y in range(height):
+        line = raw[y * (width + 1):(y + 1) * (width + 1)]
+        if line[0] != 0:
+            sys.exit("expected unfiltered rows")
+        rows.append(bytearray(line[1:]))
+    return width, height, rows
+
+
+def write_png(path, width, height, ink):
+    """Writes white ink on a transparent ground, palette entry 0
+    being the ink as in font.png."""
+    raw = b"".join(b"\0" + bytes(0 if ink(x, y) else 1 for x in range(width))
+                   for y in range(height))
+
+    def chunk(kind, body):
+        return (struct.pack(">I", len(body)) + kind + body
+                + struct.pack(">I", zlib.crc32(kind + body) & 0xffffffff))
+
+    with open(path, "wb") as out:
+        out.write(b"\x89PNG\r\n\x1a\n")
+        out.write(chunk(b"IHDR", struct.pack(">IIBBBBB", width, height, 8, 3, 0, 0, 0)))
+        out.write(chunk(b"PLTE", b"\xff\xff\xff\x00\x00\x00"))
+        out.write(chunk(b"tRNS", b"\xff\x00"))
+        out.write(chunk(b"IDAT", zlib.compress(raw, 9)))
+        out.write(chunk(b"IEND", b""))
+
+
+def box_arms(name):
+    """Returns the weight of each arm, keyed by direction, from
+    a name such as BOX DRAWINGS DOWN SINGLE AND RIGHT DOUBLE."""
+    words = name.replace("BOX DRAWINGS ", "").split(" AND ")
+    weights = ("LIGHT", "HEAVY", "DOUBLE", "SINGLE")
+    dirs = {"UP": "U", "DOWN": "D", "LEFT": "L", "RIGHT": "R",
+            "VERTICAL": "UD", "HORIZONTAL": "LR"}
+    arms, last = {}, None
+    parts = []
+    for part in words:
+        tokens = part.split()
+        weight = next((t for t in tokens if t in weights), None)
+        parts.append(([dirs[t] for t in tokens if t in dirs], weight))
+    for i, (ds, weight) in enumerate(parts):
+        if weight is None:
+            weight = last or next((w for _, w in parts[i:] if w), "LIGHT")
+        last = weight
+        for d in "".join(ds):
+            arms[d] = {"SINGLE": "LIGHT"}.get(weight, weight)
+    return arms
+
+
+def box_glyph(code, w, h):
+    name = unicodedata.name(chr(code), "")
+    cx, cy = (w - 1) // 2, (h - 1) // 2
+    if "DIAGONAL" in name:
+        pixels = set()
+        for y in range(h):
+            x = round(y * (w - 1) / (h - 1))
+            if "UPPER RIGHT TO LOWER LEFT" in name or "CROSS" in name:
+                pixels.add((w - 1 - x, y))
+            if "UPPER LEFT TO LOWER RIGHT" in name or "CROSS" in name:
+                pixels.add((x, y))
+        return pixels
+    arms = box_arms(name.replace("DOUBLE DASH", "DASH"))
+    dashed = "DASH" in name  # too small a cell to count the dashes
+    offsets = {"LIGHT": (0,), "HEAVY": (-1, 0, 1), "DOUBLE": (-1, 1)}
+    pixels = set()
+    for d, weight in arms.items():
+        horizontal = d in "LR"
+        sign = 1 if d in "RD" else -1
+        across = "UD" if horizontal else "LR"
+        centre, end = (cx, w - 1 if sign > 0 else 0) if horizontal else (cy, h - 1 if sign > 0 else 0)
+        for o in offsets[weight]:
+            start = centre
+            if weight == "DOUBLE":
+                side = across[0] if o < 0 else across[1]
+                if arms.get(side) == "DOUBLE":
+                    start = centre + sign  # meet the far line of that arm
+                elif any(arms.get(a) == "DOUBLE" for a in across):
+                    start = centre - sign  # reach round to the outer line
+            elif weight == "HEAVY" and any(a in arms for a in across):
+                start = centre - sign * max(1 if arms.get(a) == "HEAVY" else 0 for a in across)
+            for t in range(min(start, end), max(start, end) + 1):
+                if dashed and t % 2:
+                    continue
+                pixels.add((t, cy + o) if horizontal else (cx + o, t))
+    return pixels
+
+
+def block_glyph(code, w, h):
+    name = unicodedata.name(chr(code), "")
+    fractions = {"ONE EIGHTH": 1, "ONE QUARTER": 2, "THREE EIGHTHS": 3, "HALF": 4,
+                 "FIVE EIGHTHS": 5, "THREE QUARTERS": 6, "SEVEN EIGHTHS": 7}
+    if name == "FULL BLOCK":
+        return {(x, y) for x in range(w) for y in range(h)}
+    if name.endswith("SHADE"):
+        step = {"LIGHT": 4, "MEDIUM": 2, "DARK": 4}[name.split()[0]]
+        dots = {(x, y) for x in range(w) for y in range(h)
+                if (x + y * (1 if step == 2 else 2)) % step == 0}
+        if name.startswith("DARK"):
+            return {(x, y) for x in range(w) for y in range(h)} - dots
+        return dots
+    if name.startswith("QUADRANT"):
+        pixels = set()
+        for part in name[len("QUADRANT "):].split(" AND "):
+            vertical, horizontal = part.split()
+            xs = range(0, (w + 1) // 2) if horizontal == "LEFT" else range(w // 2, w)
+            ys = range(0, h // 2) if vertical == "UPPER" else range(h // 2, h)
+            pixels |= {(x, y) for x in xs for y in ys}
+        return pixels
+    for words, eighths in fractions.items():
+        if name.endswith(words + " BLOCK"):
+            side = name.split()[0]
+            if side in ("UPPER", "LOWER"):
+                n = round(h * eighths / 8)
+                ys = range(0, n) if side == "UPPER" else range(h - n, h)
+                return {(x, y) for x in range(w) for y in ys}
+            n = max(1, round(w * eighths / 8))
+            xs = range(0, n) if side == "LEFT" else range(w - n, w)
+            return {(x, y) for x in xs for y in range(h)}
+    return None
+
+
+def shape_glyph(code, w, h):
+    shape = SHAPES.get(code)
+    if shape is None:
+        return None
+    top, bottom = (h - w) // 2, (h - w) // 2 + w - 1
+    cx, cy = (w - 1) / 2, (top + bottom) / 2
+    r = (w - 1) / 2
+    pixels = set()
+    for y in range(top, bottom + 1):
+        for x in range(w):
+            dx, dy = x - cx, y - cy
+            inside = {
+                "square": True,
+                "box": x in (0, w - 1) or y in (top, bottom),
+                "small square": abs(dx) <= 1 and abs(dy) <= 1,
+                "up": abs(dx) <= r * (y - top) / (w - 1),
+                "down": abs(dx) <= r * (bottom - y) / (w - 1),
+                "right": abs(dy) <= r * (w - 1 - x) / (w - 1),
+                "left": abs(dy) <= r * x / (w - 1),
+                "diamond": abs(dx) + abs(dy) <= r,
+                "ring": r - 1 < (dx * dx + dy * dy) ** 0.5 <= r + 0.3,
+                "disc": dx * dx + dy * dy <= r * r + 0.5,
+            }[shape]
+            if inside:
+                pixels.add((x, y))
+    return pixels
+
+
+def letter_glyph(code, glyph_of):
+    """Returns an accented letter: the base letter with its mark,
+    a capital first losing a row repeated in it, or moving down
+    one, to clear the two rows above the x-height."""
+    parts = unicodedata.decomposition(chr(code)).split()
+    if len(parts) != 2 or int(parts[1], 16) not in MARKS:
+        return None
+    letter = chr(int(parts[0], 16))
+    row, *mark = MARKS[int(parts[1], 16)]
+    pixels = glyph_of(letter)
+    if letter == "i":
+        pixels = {(x, y) for x, y in pixels if y >= X_HEIGHT}  # dotless
+    top = min(y for _, y in pixels)
+    if row == 0 and top < X_HEIGHT:
+        lines = sorted({y for _, y in pixels})
+        rows = [{x for x, y in pixels if y == line} for line in lines]
+        repeated = next((i for i in range(1, len(rows)) if rows[i] == rows[i - 1]), None)
+        if repeated is None:
+            pixels = {(x, y + X_HEIGHT - top) for x, y in pixels}
+        else:
+            pixels = {(x, y + (X_HEIGHT - top if y < lines[repeated] else 0))
+                      for x, y in pixels if y != lines[repeated]}
+    for dy, line in enumerate(mark):
+        pixels |= {(x, row + dy) for x, c in enumerate(line) if c == "#"}
+    return pixels
+
+
+def sign_glyph(code):
+    rows = SIGNS.get(code)
+    if rows is None:
+        return None
+    return {(x, y) for y, line in enumerate(rows) for x, c in enumerate(line) if c == "#"}
+
+
+def arrow_glyph(code, w, h):
+    name = unicodedata.name(chr(code), "")
+    if not name.endswith("ARROW"):
+        return None
+    heads = next((steps for words, steps in ARROWS if name.startswith(words)), None)
+    if heads is None:
+        return None
+    # too small a cell for hooks, tails or bars: a plain arrow
+    # or, for double arrows, one with a double shaft
+    double = "DOUBLE" in name
+    cx, cy = (w - 1) // 2, (h - 1) // 2
+    pixels = set()
+    for dx, dy in heads:
+        reach = min(cx, 3) if dx else 3
+        tip = (cx + dx * reach, cy + dy * reach)
+        # a single head's shaft runs back across the cell
+        for t in range(-reach if len(heads) == 1 else 0, reach + 1):
+            x, y = cx + dx * t, cy + dy * t
+            if double and not (dx and dy):
+                pixels |= {(x - dy, y - dx), (x + dy, y + dx)}
+            else:
+                pixels.add((x, y))
+        arms = ((-dx, 0), (0, -dy)) if dx and dy else ((-dx - dy, dx - dy), (-dx + dy, -dx - dy))
+        for ax, ay in arms:
+            for k in range(1, 3 if double else 2):
+                pixels.add((tip[0] + ax * k, tip[1] + ay * k))
+        pixels.add(tip)
+    return {(x, y) for x, y in pixels if 0 <= x < w and 0 <= y < h}
+
+
+def main():
+    if len(sys.argv) != 2:
+        sys.exit(__doc__)
+    font = sys.argv[1]
+    width, height, rows = read_png(font)
+    cell = width // 128
+    question = {(x, y) for y in range(height) for x in range(cell)
+                if rows[y][ord("?") * cell + x] == 0}
+
+    def glyph_of(char):
+        return {(x, y) for y in range(height) for x in range(cell)
+                if rows[y][ord(char) * cell + x] == 0}
+
+    for page in PAGES:
+        glyphs = []
+        for i in range(128):
+            code = page * 128 + i
+            glyph = (None if code < 0xa0
+                     else letter_glyph(code, glyph_of) or sign_glyph(code) if code < 0x100
+                     else arrow_glyph(code, cell, height) if code < 0x2200
+                     else box_glyph(code, cell, height) if code < 0x2580
+                     else block_glyph(code, cell, height) if code < 0x25a0
+                     else shape_glyph(code, cell, height))
+            glyphs.append(question if glyph is None else glyph)
+        base, ext = os.path.splitext(font)
+        write_png("%s-%x%s" % (base, page, ext), width, height,
+                  lambda x, y: (x % cell, y) in glyphs[x // cell])
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,134 @@
+#!/usr/bin/env python3
+"""Writes the sidecar of each of BlueTerm's font png files, so
+that the phone can skip decoding the png and working out the
+baseline at startup.
+
+    font-sidecar.py src/font.png src/font-*.png
+
+Each sidecar is written next to its png as <name>.bin, big endian:
+
+    int   0x42544631, "BTF1"
+    byte  glyph width, glyph height, baseline, glyph count
+    then  a row of bits, most significant first, across all the
+          glyphs for each line of pixels; 1 is ink
+
+with each row padded to a whole byte.  As in CustomFont, a pixel
+is ink if it differs from the top left one of the font itself,
+which must be named first, and the baseline is the row in the
+bottom half with the most ink.  Run it again whenever a png
+changes.
+"""
+
+import os
+import struct
+import sys
+import zlib
+
+GLYPHS = 128
+MAGIC = 0x42544631
+
+
+def read_png(path):
+    """Returns width, height and rows of RGBA tuples of an 8 bit
+    png in any colour type, interlacing aside."""
+    data = open(path, "rb").read()
+    if data[:8] != b"\x89PNG\r\n\x1a\n":
+        sys.exit("%s: not a png" % path)
+    pos, idat, palette, alpha = 8, b"", [], b""
+    while pos < len(data):
+        length, kind = struct.unpack(">I4s", data[pos:pos + 8])
+        chunk = data[pos + 8:pos + 8 + length]
+        if kind == b"IHDR":
+            width, height, depth, colour, _, _, interlace = struct.unpack(">IIBBBBB", chunk)
+            if depth != 8 or interlace:
+                sys.exit("%s: only 8 bit, non-interlaced pngs" % path)
+        elif kind == b"PLTE":
+            palette = [tuple(chunk[i:i + 3]) for i in range(0, len(chunk), 3)]
+        elif kind == b"tRNS":
+            alpha = chunk
+        elif kind == b"IDAT":
+            idat += chunk
+        pos += 12 + length
+
+    channels = {0: 1, 2: 3, 3: 1, 4: 2, 6: 4}[colour]
+    stride = width * channels
+    raw = zlib.decompress(idat)
+    previous = bytearray(stride)
+    rows = []
+    for y in range(height):
+        kind = raw[y * (stride + 1)]
+        line = bytearray(raw[y * (stride + 1) + 1:(y + 1) * (stride + 1)])
+        for i in range(stride):
+            left = line[i - channels] if i >= channels else 0
+            up = previous[i]
+            corner = previous[i - channels] if i >= channels else 0
+            if kind == 1:
+                line[i] = (line[i] + left) & 0xff
+            elif kind == 2:
+                line[i] = (line[i] + up) & 0xff
+            elif kind == 3:
+                line[i] = (line[i] + (left + up) // 2) & 0xff
+            elif kind == 4:
+                p = left + up - corner
+                pa, pb, pc = abs(p - left), abs(p - up), abs(p - corner)
+                predictor = left if pa <= pb and pa <= pc else up if pb <= pc else corner
+                line[i] = (line[i] + predictor) & 0xff
+        previous = line
+        pixels = []
+        for x in range(width):
+            v = line[x * channels:(x + 1) * channels]
+            if colour == 3:
+                a = alpha[v[0]] if v[0] < len(alpha) else 255
+                pixels.append(palette[v[0]] + (a,))
+            elif colour == 0:
+                pixels.append((v[0], v[0], v[0], 255))
+            elif colour == 4:
+                pixels.append((v[0], v[0], v[0], v[1]))
+            elif colour == 2:
+                pixels.append(tuple(v) + (255,))
+            else:
+                pixels.append(tuple(v))
+        rows.append(pixels)
+    return width, height, rows
+
+
+def sidecar(path, background=None):
+    """Writes the sidecar of the specified png, returning the
+    background it took."""
+    width, height, rows = read_png(path)
+    if width % GLYPHS:
+        sys.exit("%s: not %d glyphs wide" % (path, GLYPHS))
+    if background is None:
+        background = rows[0][0]
+    ink = [[p != background for p in row] for row in rows]
+
+    baseline, most = height, 0
+    for y in range(height // 2, height):
+        total = sum(ink[y])
+        if total > most:
+            baseline, most = y, total
+
+    out = bytearray(struct.pack(">IBBBB", MAGIC, width // GLYPHS, height, baseline, GLYPHS))
+    for row in ink:
+        bits = bytearray((width + 7) // 8)
+        for x, on in enumerate(row):
+            if on:
+                bits[x >> 3] |= 0x80 >> (x & 7)
+        out += bits
+    name = os.path.splitext(path)[0] + ".bin"
+    with open(name, "wb") as f:
+        f.write(out)
+    print("%s: %dx%d glyphs, baseline %d, %d bytes" % (name, width // GLYPHS, height, baseline, len(out)))
+    return background
+
+
+def main():
+    if len(sys.argv) < 2:
+        sys.exit(__doc__)
+    background = sidecar(sys.argv[1])
+    for path in sys.argv[2:]:
+        sidecar(path, background)
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,56 @@
+#!/usr/bin/env python3
+"""Records the output of a command as ttyrec, for playing back
+with replay: in BlueTerm.jad, ttyplay, or the benchmarks, which
+replay every recording in bench/recordings.
+
+    ttyrec.py [-s COLSxROWS] out.ttyrec command [args...]
+
+The command runs in a pty of BlueTerm's bench screen size,
+48x32, unless another is given, with TERM=ansi as BlueTerm
+reports.  Each read from the pty becomes one frame.
+"""
+
+import fcntl
+import os
+import pty
+import struct
+import sys
+import termios
+import time
+
+
+def main():
+    args = sys.argv[1:]
+    columns, rows = 48, 32
+    if args[:1] == ["-s"]:
+        columns, rows = map(int, args[1].split("x"))
+        args = args[2:]
+    if len(args) < 2:
+        sys.exit(__doc__)
+    path, command = args[0], args[1:]
+
+    pid, master = pty.fork()
+    if pid == 0:
+        fcntl.ioctl(0, termios.TIOCSWINSZ, struct.pack("HHHH", rows, columns, 0, 0))
+        os.environ.update(TERM="ansi", COLUMNS=str(columns), LINES=str(rows))
+        os.execvp(command[0], command)
+
+    frames = total = 0
+    with open(path, "wb") as out:
+        while True:
+            try:
+                data = os.read(master, 65536)
+            except OSError:  # the command has exited
+                break
+            if not data:
+                break
+            now = time.time()
+            out.write(struct.pack("<III", int(now), int(now % 1 * 1000000), len(data)) + data)
+            frames += 1
+            total += len(data)
+    os.waitpid(pid, 0)
+    print("%s: %d frames, %d bytes" % (path, frames, total))
+
+
+if __name__ == "__main__":
+    main()